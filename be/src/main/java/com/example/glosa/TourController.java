@@ -1,14 +1,17 @@
 package com.example.glosa;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
 
 import org.mapstruct.Mapper;
-import org.mapstruct.Mapping;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -16,17 +19,27 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.example.glosa.calculation.RecommendationStreams;
 import com.example.glosa.calculation.SpeedRecommender;
 import com.example.glosa.calculation.SpeedRecommender.NextTrafficLightDto;
+import com.example.glosa.calculation.TrackSimplifier;
+import com.example.glosa.calculation.TripSessions;
+import com.example.glosa.calculation.TripSessions.Fix;
 import com.example.glosa.routing.PlannedRoute;
 import com.example.glosa.tracking.LocationTrackingQueryService;
 import com.example.glosa.tracking.LocationTrackingService;
-import com.example.glosa.tracking.TrackedLocation;
 import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
-import com.example.glosa.tracking.TrackedTrip;
 import com.example.glosa.tracking.TrackedTripRepository;
+import com.example.glosa.tracking.TrackedTripSummary;
+import com.example.glosa.tracking.TrackedTripSummary.Cursor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.Max;
@@ -53,6 +66,9 @@ class TourController {
     private final LocationTrackingQueryService tourQueryService;
     private final TripDtoMapper tripDtoMapper;
     private final LocationTrackingService service;
+    private final TripSessions tripSessions;
+    private final ObjectMapper objectMapper;
+    private final RecommendationStreams recommendationStreams;
 
     @GetMapping(path = "/{tourId}/route")
     PlannedRoute getRouteByTourId(@PathVariable("tourId") long tourId) {
@@ -60,59 +76,134 @@ class TourController {
     }
 
     @PostMapping(path = "/{tourId}/traffic-lights-data")
-    NextTrafficLightDto getNextTrafficLightData(@PathVariable("tourId") long tourId,
-            @RequestParam(value = "reachedIdx", defaultValue = "0") int reachedIdx,
+    CompletableFuture<NextTrafficLightDto> getNextTrafficLightData(@PathVariable("tourId") long tourId,
+            @Valid @RequestBody ValidList<TrackedPositionDto> positions,
+            @RequestParam(name = "dataVersion", required = false) Optional<Long> dataVersion) {
+
+        var session = tripSessions.get(tourId); // progress is tracked server-side (reachedIdx param is ignored)
+
+        trackingService.trackLocations(tourId,
+                positions.stream().map(positionDtoMapper::toTrackedPosition).toList());
+
+        return routeSnapper.pollSpeedRecommendation(session, toFix(positions.get(positions.size() - 1)),
+                dataVersion);
+    }
+
+    /**
+     * alternative to polling traffic-lights-data: recommendations are pushed
+     * whenever they change (see {@link #pushPositions})
+     */
+    @GetMapping(path = "/{tourId}/traffic-lights-data/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    SseEmitter streamTrafficLightData(@PathVariable("tourId") long tourId) {
+        return recommendationStreams.subscribe(tourId);
+    }
+
+    @PostMapping(path = "/{tourId}/positions")
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    void pushPositions(@PathVariable("tourId") long tourId,
             @Valid @RequestBody ValidList<TrackedPositionDto> positions) {
 
-        var tour = trackingService.trackLocations(tourId,
+        var session = tripSessions.get(tourId);
+
+        trackingService.trackLocations(tourId,
                 positions.stream().map(positionDtoMapper::toTrackedPosition).toList());
 
-        var lastPosition = positions.get(positions.size() - 1);
+        recommendationStreams.publish(tourId, session, toFix(positions.get(positions.size() - 1)));
+    }
 
-        return routeSnapper.calculateSpeedRecommendation(tour.getRoute().getName(), lastPosition.getLat(),
-                lastPosition.getLng(), reachedIdx, Optional.ofNullable(lastPosition.getSpeed()));
+    private static Fix toFix(TrackedPositionDto position) {
+        return new Fix(position.getMeasurementTime(), position.getLat(), position.getLng(), position.getSpeed(),
+                position.getHeading());
     }
 
     @PostMapping(path = "")
     @ResponseBody
     StartedTripDto startNewTrip(@RequestBody @Valid TimeDto tripStartData) {
         var tripId = service.startNewTrip(tripStartData.getTime(), tripStartData.getRouteName());
+        tripSessions.start(tripId, tripStartData.getRouteName());
         return new StartedTripDto("" + tripId);
     }
 
     @PostMapping(path = "/{tourId}/end")
     void endTour(@PathVariable("tourId") long tourId, @RequestParam(name = "time") OffsetDateTime time) {
         trackingService.endTrip(tourId, time);
+        tripSessions.end(tourId);
+        recommendationStreams.end(tourId);
     }
 
     @GetMapping(path = "/{tourId}")
-    TripWithPositionsDto getTripDetails(@PathVariable("tourId") long tourId) {
-
-        var tripWithLocations = tourQueryService.getTripWithLocations(tourId);
+    TripWithPositionsDto getTripDetails(@PathVariable("tourId") long tourId,
+            @RequestParam(name = "from", required = false) Optional<OffsetDateTime> from,
+            @RequestParam(name = "to", required = false) Optional<OffsetDateTime> to,
+            @RequestParam(name = "maxPoints", required = false) Optional<Integer> maxPoints) {
+
+        var trip = tourQueryService.getTrip(tourId);
+        var positions = tourQueryService.getPositions(tourId, from, to);
+        if (maxPoints.isPresent()) // for display: keeps the points which shape the track most
+            positions = TrackSimplifier.simplify(positions, TrackedPosition::getLat, TrackedPosition::getLng,
+                    maxPoints.get());
+
+        return new TripWithPositionsDto(trip.getId(), trip.getTripStartTime(), trip.getTripEndTime(),
+                tripDtoMapper.toPositionDtos(positions));
+    }
 
-        return tripDtoMapper.toTripWithPositionsDto(tripWithLocations);
+    /**
+     * Same positions as {@link #getTripDetails}, but streamed as one json
+     * object per line: memory usage does not depend on the length of the trip.
+     */
+    @GetMapping(path = "/{tourId}/locations", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    StreamingResponseBody exportLocations(@PathVariable("tourId") long tourId) {
+
+        if (!tripRepository.existsById(tourId))
+            throw new NoSuchElementException("no trip " + tourId);
+
+        return out -> {
+            var writer = objectMapper.writer().withRootValueSeparator("\n")
+                    .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            try (var values = writer.writeValues(out)) {
+                tourQueryService.forEachPosition(tourId, position -> {
+                    try {
+                        values.write(tripDtoMapper.toTrackedPositionDto(position));
+                    } catch (IOException e) { // e.g. client disconnected
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        };
     }
 
     @GetMapping(path = "")
     List<TrackedTripAllInfoDto> getTrips() {
-        return getTours(Optional.empty());
+        return tripInfoDtoMapper.toDtos(tourQueryService.getTrips());
     }
 
     @GetMapping(path = "/last-n")
     List<TrackedTripAllInfoDto> getLastTours() {
-        Optional<Integer> maxN = Optional.of(25);
-        return getTours(maxN);
+        return tripInfoDtoMapper.toDtos(tourQueryService.getTrips(Optional.empty(), 25));
     }
 
-    private List<TrackedTripAllInfoDto> getTours(Optional<Integer> maxN) {
-        var byCreationDateDesc = Comparator.comparing(TrackedTripAllInfoDto::getTripStartTime).reversed();
-        Stream<TrackedTripAllInfoDto> stream = tripRepository.findAll().stream().map(tripInfoDtoMapper::toDto)
-                .sorted(byCreationDateDesc);
-        if (maxN.isPresent()) {
-            stream = stream.limit(maxN.get());
+    private static final int MAX_PAGE_SIZE = 100;
+
+    /**
+     * latest first, continued by passing the returned cursor
+     */
+    @GetMapping(path = "/page")
+    TripPageDto getTripPage(@RequestParam(name = "cursor", required = false) Optional<String> cursor,
+            @RequestParam(name = "size", defaultValue = "25") int size) {
+
+        size = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        var trips = tourQueryService.getTrips(cursor.map(TourController::decodeCursor), size);
+
+        var next = trips.size() < size ? null : Cursor.after(trips.get(trips.size() - 1)).encode();
+        return new TripPageDto(tripInfoDtoMapper.toDtos(trips), next);
+    }
+
+    private static Cursor decodeCursor(String value) {
+        try {
+            return Cursor.decode(value);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
         }
-        List<TrackedTripAllInfoDto> list = stream.toList();
-        return list;
     }
 
     @Data
@@ -127,8 +218,16 @@ class TourController {
     @Mapper(componentModel = "spring")
     public interface TrackedTripAllInfoDtoMapper {
 
-        @Mapping(source = "route.name", target = "routeName")
-        TrackedTripAllInfoDto toDto(TrackedTrip dto);
+        List<TrackedTripAllInfoDto> toDtos(List<TrackedTripSummary> trips);
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class TripPageDto {
+        private List<TrackedTripAllInfoDto> trips;
+        /** null on the last page */
+        private String nextCursor;
     }
 
     @Data
@@ -209,12 +308,9 @@ class TourController {
     @Mapper(componentModel = "spring")
     interface TripDtoMapper {
 
-        TripWithPositionsDto toTripWithPositionsDto(TrackedTrip tripWithLocations);
-
-        List<TrackedPositionDto> toTrackedPositionDtos(List<TrackedLocation> locations);
+        TrackedPositionDto toTrackedPositionDto(TrackedPosition position);
 
-        @Mapping(target = ".", source = "position")
-        TrackedPositionDto toTrackedPositionDto(TrackedLocation location);
+        List<TrackedPositionDto> toPositionDtos(List<TrackedPosition> positions);
     }
 
 }
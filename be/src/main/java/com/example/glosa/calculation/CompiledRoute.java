@@ -0,0 +1,72 @@
+package com.example.glosa.calculation;
+
+import com.example.glosa.routing.PlannedRoute;
+import com.example.glosa.routing.PlannedRoutePoint;
+
+/**
+ * Immutable snapshot of a planned route with everything needed to calculate
+ * speed recommendations (geometry incl. index, traffic-light and datastream
+ * ids, next-traffic-light table), so the hot path never touches JPA entities.
+ */
+public final class CompiledRoute {
+
+    public static final String CACHE_NAME = "compiledRoute";
+
+    private final String name;
+    private final RouteGeometry geometry;
+    private final String[] trafficLightIds; // per point, null if none
+    private final String[] datastreamIds; // per point, null if none
+    private final int[] nextTrafficLightIdx; // index of the next point (at or after i) with a traffic-light, -1 if none
+
+    private CompiledRoute(String name, RouteGeometry geometry, String[] trafficLightIds, String[] datastreamIds) {
+        this.name = name;
+        this.geometry = geometry;
+        this.trafficLightIds = trafficLightIds;
+        this.datastreamIds = datastreamIds;
+        this.nextTrafficLightIdx = calcNextTrafficLightIdx(trafficLightIds);
+    }
+
+    public static CompiledRoute compile(PlannedRoute route) {
+        var points = route.getPoints();
+        var geometry = RouteGeometry.of(points, PlannedRoutePoint::getLat, PlannedRoutePoint::getLon).indexed();
+        var trafficLightIds = points.stream().map(PlannedRoutePoint::getTrafficLightId).toArray(String[]::new);
+        var datastreamIds = points.stream().map(PlannedRoutePoint::getDatastreamId).toArray(String[]::new);
+        return new CompiledRoute(route.getName(), geometry, trafficLightIds, datastreamIds);
+    }
+
+    private static int[] calcNextTrafficLightIdx(String[] trafficLightIds) {
+        var nextTlIdx = new int[trafficLightIds.length];
+        int next = -1;
+        for (int i = trafficLightIds.length - 1; i >= 0; i--) {
+            if (trafficLightIds[i] != null)
+                next = i;
+            nextTlIdx[i] = next;
+        }
+        return nextTlIdx;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public RouteGeometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * @return index of the next traffic-light after the reached waypoint, -1 if
+     *         there is none
+     */
+    public int nextTrafficLightIdx(int reachedIdx) {
+        return reachedIdx + 1 < nextTrafficLightIdx.length ? nextTrafficLightIdx[reachedIdx + 1] : -1;
+    }
+
+    public String trafficLightId(int i) {
+        return trafficLightIds[i];
+    }
+
+    public String datastreamId(int i) {
+        return datastreamIds[i];
+    }
+
+}
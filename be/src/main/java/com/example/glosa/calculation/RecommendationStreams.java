@@ -0,0 +1,235 @@
+package com.example.glosa.calculation;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.example.glosa.calculation.SpeedRecommender.NextTrafficLightDto;
+import com.example.glosa.calculation.TripSessions.Fix;
+import com.example.glosa.calculation.TripSessions.TripSession;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Server-sent recommendation events for active trips: a new
+ * {@link NextTrafficLightDto} is only pushed if the snapped position or the
+ * data of the upcoming traffic-light changed, so clients neither need to poll
+ * nor receive repeated recommendations. Traffic-light data is checked
+ * periodically for all streamed trips (served from the short-lived
+ * observation/prediction caches).
+ * <p>
+ * Events are sent by the push-threads: sending blocks while a client's
+ * connection is congested, which must neither hold up the threads completing
+ * recommendations (e.g. the http client's event loop) nor other streams.
+ */
+@Slf4j
+@Service
+public class RecommendationStreams {
+
+    static final String EVENT_NAME = "recommendation";
+
+    private final SpeedRecommender speedRecommender;
+    private final TripSessions tripSessions;
+    private final Duration timeout;
+    private final Executor pushExecutor;
+
+    private final Map<Long, TripStream> streams = new ConcurrentHashMap<>(); // by trip id
+
+    private final Counter pushes;
+
+    @Autowired
+    RecommendationStreams(SpeedRecommender speedRecommender, TripSessions tripSessions,
+            @Value("${tracking.stream.timeout}") Duration timeout,
+            @Value("${tracking.stream.push-threads}") int pushThreads, MeterRegistry meterRegistry) {
+        this(speedRecommender, tripSessions, timeout,
+                Executors.newFixedThreadPool(pushThreads, new CustomizableThreadFactory("recommendation-push-")),
+                meterRegistry);
+    }
+
+    RecommendationStreams(SpeedRecommender speedRecommender, TripSessions tripSessions, Duration timeout,
+            Executor pushExecutor, MeterRegistry meterRegistry) {
+        this.speedRecommender = speedRecommender;
+        this.tripSessions = tripSessions;
+        this.timeout = timeout;
+        this.pushExecutor = pushExecutor;
+        Gauge.builder("recommendation.streams", streams, s -> s.values().stream().mapToInt(TripStream::size).sum())
+                .description("open recommendation event streams").register(meterRegistry);
+        this.pushes = Counter.builder("recommendation.stream.pushes")
+                .description("recommendations pushed to streams (unchanged ones are skipped)").register(meterRegistry);
+    }
+
+    /**
+     * the current recommendation is sent right away (if there already is a fix)
+     *
+     * @throws java.util.NoSuchElementException if there is no such trip
+     */
+    public SseEmitter subscribe(long tripId) {
+
+        var session = tripSessions.get(tripId);
+
+        var emitter = new SseEmitter(timeout.toMillis());
+        var stream = streams.compute(tripId, (id, s) -> (s != null ? s : new TripStream()).add(emitter));
+        Runnable remove = () -> streams.computeIfPresent(tripId, (id, s) -> s.remove(emitter) ? null : s);
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+
+        if (session.getLastFix() != null)
+            speedRecommender.recalculateSpeedRecommendation(session)
+                    .thenAcceptAsync(recommendation -> stream.sendTo(emitter, recommendation), pushExecutor);
+        return emitter;
+    }
+
+    /**
+     * applies the fix to the session and pushes the resulting recommendation to
+     * the trip's streams (if changed)
+     */
+    public void publish(long tripId, TripSession session, Fix fix) {
+        pushWhenDone(tripId, speedRecommender.calculateSpeedRecommendation(session, fix));
+    }
+
+    /**
+     * completes the trip's streams, e.g. when the trip ended
+     */
+    public void end(long tripId) {
+        var stream = streams.remove(tripId);
+        if (stream != null)
+            stream.complete();
+    }
+
+    /**
+     * streams of trips without a session (ended, evicted when idle) are
+     * completed: refreshing neither creates sessions nor keeps them alive
+     */
+    @Scheduled(fixedDelayString = "${tracking.stream.refresh-interval-ms}")
+    void refresh() {
+        for (var tripId : streams.keySet()) {
+            try {
+                var session = tripSessions.getIfPresent(tripId);
+                if (session.isEmpty())
+                    end(tripId);
+                else if (session.get().getLastFix() != null)
+                    pushWhenDone(tripId, speedRecommender.recalculateSpeedRecommendation(session.get()));
+            } catch (RuntimeException e) { // e.g. trip deleted
+                log.warn("could not refresh recommendation of trip {}", tripId, e);
+            }
+        }
+    }
+
+    private void pushWhenDone(long tripId, CompletableFuture<NextTrafficLightDto> recommendation) {
+        recommendation.thenAcceptAsync(r -> push(tripId, r), pushExecutor).exceptionally(e -> {
+            log.warn("could not calculate recommendation of trip {}", tripId, e);
+            return null;
+        });
+    }
+
+    private void push(long tripId, NextTrafficLightDto recommendation) {
+        var stream = streams.get(tripId);
+        if (stream != null && stream.changed(recommendation)) {
+            pushes.increment();
+            stream.sendIfLatest(recommendation);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        if (pushExecutor instanceof ExecutorService executorService)
+            executorService.shutdown();
+    }
+
+    /**
+     * the necessary speed alone is not compared: it changes every second, which
+     * the client can extrapolate itself
+     */
+    static boolean isUnchanged(NextTrafficLightDto previous, NextTrafficLightDto next) {
+        return previous != null
+                && Objects.equals(previous.getSnappedTo(), next.getSnappedTo())
+                && Objects.equals(previous.getTrafficLightId(), next.getTrafficLightId())
+                && Objects.equals(previous.getData(), next.getData())
+                && Objects.equals(previous.getRecommendation(), next.getRecommendation());
+    }
+
+    private static final class TripStream {
+
+        private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+        private final Object sending = new Object(); // events of a stream are sent one at a time
+
+        private volatile NextTrafficLightDto last; // written while holding this
+
+        TripStream add(SseEmitter emitter) {
+            emitters.add(emitter);
+            return this;
+        }
+
+        /**
+         * @return true if no emitter is left
+         */
+        boolean remove(SseEmitter emitter) {
+            emitters.remove(emitter);
+            return emitters.isEmpty();
+        }
+
+        int size() {
+            return emitters.size();
+        }
+
+        /**
+         * @return true if the recommendation is the new latest one (to be sent)
+         */
+        synchronized boolean changed(NextTrafficLightDto recommendation) {
+            if (isUnchanged(last, recommendation))
+                return false;
+            last = recommendation;
+            return true;
+        }
+
+        /**
+         * skipped if a later recommendation changed the stream in the meantime
+         * (sent by its own push), so clients never go back to an older one
+         */
+        void sendIfLatest(NextTrafficLightDto recommendation) {
+            synchronized (sending) {
+                if (recommendation == last)
+                    emitters.forEach(emitter -> send(emitter, recommendation));
+            }
+        }
+
+        void sendTo(SseEmitter emitter, NextTrafficLightDto recommendation) {
+            synchronized (sending) {
+                send(emitter, recommendation);
+            }
+        }
+
+        private static void send(SseEmitter emitter, NextTrafficLightDto recommendation) {
+            try {
+                emitter.send(SseEmitter.event().name(EVENT_NAME).data(recommendation));
+            } catch (IOException | IllegalStateException e) { // client gone or emitter completed
+                emitter.completeWithError(e);
+            }
+        }
+
+        void complete() {
+            emitters.forEach(SseEmitter::complete);
+        }
+    }
+
+}
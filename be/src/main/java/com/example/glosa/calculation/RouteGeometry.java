@@ -0,0 +1,228 @@
+package com.example.glosa.calculation;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+import com.example.glosa.calculation.RouteSnapper.Point;
+
+/**
+ * Immutable, compiled representation of a route: mercator x/y, lat/lon, the
+ * haversine length and the bearing of each segment are stored in packed
+ * primitive arrays, so snapping does not need to create any objects per
+ * segment.
+ * Geometries of loaded routes additionally carry a spatial index of their
+ * segments.
+ */
+public final class RouteGeometry {
+
+    private final double[] x;
+    private final double[] y;
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] segmentLengthM; // distance from point i to point i+1
+    private final double[] distanceFromStartM; // prefix sums of the segment lengths
+    private final double[] bearingDeg; // direction from point i to point i+1, NaN if both are equal
+
+    private final SegmentGrid index; // nullable
+
+    private RouteGeometry(double[] x, double[] y, double[] lat, double[] lon, double[] segmentLengthM) {
+        this.x = x;
+        this.y = y;
+        this.lat = lat;
+        this.lon = lon;
+        this.segmentLengthM = segmentLengthM;
+        this.distanceFromStartM = calcDistancesFromStart(segmentLengthM);
+        this.bearingDeg = calcBearings(x, y);
+        this.index = null;
+    }
+
+    private RouteGeometry(RouteGeometry geometry, SegmentGrid index) {
+        this.x = geometry.x;
+        this.y = geometry.y;
+        this.lat = geometry.lat;
+        this.lon = geometry.lon;
+        this.segmentLengthM = geometry.segmentLengthM;
+        this.distanceFromStartM = geometry.distanceFromStartM;
+        this.bearingDeg = geometry.bearingDeg;
+        this.index = index;
+    }
+
+    public static RouteGeometry ofPoints(List<Point> points) {
+        return of(points.size(), points::get);
+    }
+
+    public static <T> RouteGeometry of(List<T> points, ToDoubleFunction<T> latExtractor,
+            ToDoubleFunction<T> lonExtractor) {
+        return of(points.size(), i -> {
+            var p = points.get(i);
+            return Point.ofLatLon(latExtractor.applyAsDouble(p), lonExtractor.applyAsDouble(p));
+        });
+    }
+
+    private interface PointSource {
+        Point get(int i);
+    }
+
+    private static RouteGeometry of(int n, PointSource source) {
+        var x = new double[n];
+        var y = new double[n];
+        var lat = new double[n];
+        var lon = new double[n];
+        for (int i = 0; i < n; i++) {
+            var p = source.get(i);
+            x[i] = p.getX();
+            y[i] = p.getY();
+            lat[i] = p.getLat();
+            lon[i] = p.getLon();
+        }
+        return new RouteGeometry(x, y, lat, lon, calcSegmentLengths(lat, lon));
+    }
+
+    private static double[] calcSegmentLengths(double[] lat, double[] lon) {
+        var lengths = new double[Math.max(lat.length - 1, 0)];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = RouteSnapper.haversineDistanceM(lat[i], lon[i], lat[i + 1], lon[i + 1]);
+        }
+        return lengths;
+    }
+
+    private static double[] calcDistancesFromStart(double[] segmentLengthM) {
+        var distances = new double[segmentLengthM.length + 1];
+        for (int i = 0; i < segmentLengthM.length; i++) {
+            distances[i + 1] = distances[i] + segmentLengthM[i];
+        }
+        return distances;
+    }
+
+    private static double[] calcBearings(double[] x, double[] y) {
+        var bearings = new double[Math.max(x.length - 1, 0)];
+        for (int i = 0; i < bearings.length; i++) {
+            double dx = x[i + 1] - x[i];
+            double dy = y[i + 1] - y[i];
+            // mercator is conformal: the planar angle is the compass bearing
+            bearings[i] = dx == 0 && dy == 0 ? Double.NaN : (Math.toDegrees(Math.atan2(dx, dy)) + 360) % 360;
+        }
+        return bearings;
+    }
+
+    /**
+     * @return this geometry with a spatial index of its segments, which makes
+     *         snapping independent of the route length
+     */
+    public RouteGeometry indexed() {
+        return index != null ? this : new RouteGeometry(this, SegmentGrid.build(this));
+    }
+
+    SegmentGrid getIndex() {
+        return index;
+    }
+
+    /**
+     * @return a copy of this geometry with the given point inserted at idx
+     *         (only used while creating routes, not on the hot path, so the copy
+     *         is not indexed)
+     */
+    public RouteGeometry withInsertedPoint(int idx, Point p) {
+        var lat = insert(this.lat, idx, p.getLat());
+        var lon = insert(this.lon, idx, p.getLon());
+        return new RouteGeometry(insert(this.x, idx, p.getX()), insert(this.y, idx, p.getY()), lat, lon,
+                calcSegmentLengths(lat, lon));
+    }
+
+    private static double[] insert(double[] values, int idx, double value) {
+        var result = Arrays.copyOf(values, values.length + 1);
+        System.arraycopy(values, idx, result, idx + 1, values.length - idx);
+        result[idx] = value;
+        return result;
+    }
+
+    public int size() {
+        return x.length;
+    }
+
+    public int segmentCount() {
+        return segmentLengthM.length;
+    }
+
+    public double x(int i) {
+        return x[i];
+    }
+
+    public double y(int i) {
+        return y[i];
+    }
+
+    public double lat(int i) {
+        return lat[i];
+    }
+
+    public double lon(int i) {
+        return lon[i];
+    }
+
+    public double segmentLengthM(int i) {
+        return segmentLengthM[i];
+    }
+
+    public double distanceFromStartM(int i) {
+        return distanceFromStartM[i];
+    }
+
+    /**
+     * @return degrees clockwise from north, NaN for a segment without length
+     */
+    public double bearingDeg(int i) {
+        return bearingDeg[i];
+    }
+
+    /**
+     * @return true if segment i points in the given direction (+/- tolerance),
+     *         or if either direction is unknown (NaN)
+     */
+    public boolean matchesHeading(int i, double headingDeg, double toleranceDeg) {
+        double bearing = bearingDeg[i];
+        if (Double.isNaN(headingDeg) || Double.isNaN(bearing))
+            return true;
+        double difference = Math.abs(bearing - headingDeg) % 360;
+        return Math.min(difference, 360 - difference) <= toleranceDeg;
+    }
+
+    /**
+     * @return distance along the route from a location on segment i to point
+     *         toIdx (> i)
+     */
+    public double distanceAlongRouteM(double lat, double lon, int i, int toIdx) {
+        return RouteSnapper.haversineDistanceM(lat, lon, this.lat[i + 1], this.lon[i + 1])
+                + distanceFromStartM[toIdx] - distanceFromStartM[i + 1];
+    }
+
+    /**
+     * @return distance along the route from the start to a location on segment i
+     */
+    public double distanceFromStartM(double lat, double lon, int i) {
+        return distanceFromStartM[i] + RouteSnapper.haversineDistanceM(this.lat[i], this.lon[i], lat, lon);
+    }
+
+    /**
+     * @return the segment containing the location at the given distance along
+     *         the route (first/last segment if outside)
+     */
+    public int segmentAt(double distanceFromStartM) {
+        int low = 0;
+        int high = segmentCount() - 1;
+        while (low < high) { // last segment starting at or before the distance
+            int mid = (low + high + 1) >>> 1;
+            if (this.distanceFromStartM[mid] <= distanceFromStartM)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    public Point getPoint(int i) {
+        return Point.of(x[i], y[i], lat[i], lon[i]);
+    }
+
+}
@@ -1,15 +1,10 @@
 package com.example.glosa.calculation;
 
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.function.BiFunction;
 import java.util.stream.IntStream;
 
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.LineString;
-import org.locationtech.jts.operation.distance.DistanceOp;
 import org.springframework.stereotype.Service;
 
 import lombok.AccessLevel;
@@ -31,7 +26,7 @@ public class RouteSnapper {
      */
     @Data
     @AllArgsConstructor(access = AccessLevel.PRIVATE)
-    @Getter(value = AccessLevel.PRIVATE)
+    @Getter(value = AccessLevel.PACKAGE)
     public static class Point {
         private final double x;
         private final double y;
@@ -40,16 +35,8 @@ public class RouteSnapper {
         private Double lat;
         private Double distanceToNext;
 
-        private Coordinate toJtsCoordinate() {
-            return new Coordinate(x, y);
-        }
-
-        private org.locationtech.jts.geom.Point toJts() {
-            return new GeometryFactory().createPoint(toJtsCoordinate());
-        }
-
-        private static Point fromJts(Coordinate c) {
-            return new Point(c.x, c.y, null, null, null);
+        static Point of(double x, double y, double lat, double lon) {
+            return new Point(x, y, lon, lat, null);
         }
 
         public static Point ofLatLon(double lat, double lon) {
@@ -92,11 +79,6 @@ public class RouteSnapper {
     public static class Segment {
         private final Point start;
         private final Point end;
-
-        private LineString toJts() {
-            return new GeometryFactory()
-                    .createLineString(new Coordinate[] { start.toJtsCoordinate(), end.toJtsCoordinate() });
-        }
     }
 
     @Data
@@ -118,6 +100,7 @@ public class RouteSnapper {
     @Data
     @Builder
     public static class RouteSnappingParameter {
+        /** only needed for {@link RouteSnapper#insert(RouteSnappingParameter)} */
         private final List<Point> route;
         private final Point location;
         private final String context;
@@ -162,6 +145,19 @@ public class RouteSnapper {
     public ReachedWaypointResult insert(RouteSnappingParameter params) {
 
         var route = params.getRoute();
+
+        var reached = snap(RouteGeometry.ofPoints(route), params);
+
+        route.add(reached.reachedWaypointIdx + 1, params.getLocation());
+        return reached;
+    }
+
+    /**
+     * snaps the parameter location to the given route, starting from the
+     * previously reached waypoint (if set)
+     */
+    public ReachedWaypointResult snap(RouteGeometry route, RouteSnappingParameter params) {
+
         var location = params.getLocation();
         var distanceFromRouteThresholdM = params.getDistanceFromRouteThresholdM();
         var previouslyReachedWaypoint = params.getPreviouslyReachedWaypointIdx();
@@ -177,53 +173,191 @@ public class RouteSnapper {
                             + "\nthreshold: " + distanceFromRouteThresholdM + "\nsegment: " + reached);
         }
 
-        route.add(reached.reachedWaypointIdx + 1, location);
         return reached;
     }
 
     ReachedWaypointResult calcReachedWaypointIdx(List<Point> route, Point location, int reachedWaypointIdx) {
-
-        var subList = route.subList(reachedWaypointIdx, route.size());
-        var result = calcReachedWaypointIdx(subList, location);
-        result.reachedWaypointIdx += reachedWaypointIdx;
-        return result;
+        return calcReachedWaypointIdx(RouteGeometry.ofPoints(route), location, reachedWaypointIdx);
     }
 
     public ReachedWaypointResult calcReachedWaypointIdx(List<Point> route, Point location) {
+        return calcReachedWaypointIdx(route, location, 0);
+    }
 
-        // calc distance from each linear segment
-        NearestSegmentResult nearestSegment = new NearestSegmentResult(null, null, Double.MAX_VALUE);
+    public ReachedWaypointResult calcReachedWaypointIdx(RouteGeometry route, Point location, int reachedWaypointIdx) {
+        return calcReachedWaypointIdx(route, location, reachedWaypointIdx, Double.NaN);
+    }
+
+    /**
+     * @param headingDeg direction of travel (degrees clockwise from north, NaN
+     *                   if unknown): segments pointing in another direction
+     *                   (e.g. the other lane of an out-and-back route) are not
+     *                   snapped to, unless no segment matches at all
+     */
+    public ReachedWaypointResult calcReachedWaypointIdx(RouteGeometry route, Point location, int reachedWaypointIdx,
+            double headingDeg) {
+
+        int reachedWaypoint = calcReachedSegment(route, location, reachedWaypointIdx, headingDeg);
+        if (reachedWaypoint < 0 && !Double.isNaN(headingDeg))
+            reachedWaypoint = calcReachedSegment(route, location, reachedWaypointIdx, Double.NaN);
+        if (reachedWaypoint < 0)
+            throw new IllegalArgumentException("no route segment after waypoint " + reachedWaypointIdx);
+
+        return toResult(route, reachedWaypoint, location);
+    }
+
+    private int calcReachedSegment(RouteGeometry route, Point location, int reachedWaypointIdx, double headingDeg) {
+        return route.getIndex() != null
+                ? calcReachedSegmentIndexed(route, location.x, location.y, reachedWaypointIdx, headingDeg)
+                : calcReachedSegment(route, location.x, location.y, reachedWaypointIdx, headingDeg);
+    }
+
+    /**
+     * Re-acquires the position on an (indexed) route without any hint about the
+     * previously reached waypoint, e.g. after an app restart or a gps jump.
+     */
+    public ReachedWaypointResult reacquire(RouteGeometry route, Point location) {
+        return reacquire(route, location, Double.NaN);
+    }
+
+    /**
+     * @param headingDeg see
+     *                   {@link #calcReachedWaypointIdx(RouteGeometry, Point, int, double)}
+     */
+    public ReachedWaypointResult reacquire(RouteGeometry route, Point location, double headingDeg) {
+
+        var index = route.indexed().getIndex();
+        int nearest = index.nearestSegment(route, location.x, location.y, 0, headingDeg);
+        if (nearest < 0)
+            nearest = index.nearestSegment(route, location.x, location.y, 0);
+        if (nearest < 0)
+            throw new IllegalArgumentException("route has no segments");
+
+        return toResult(route, nearest, location);
+    }
+
+    /**
+     * Dead reckoning: only checks the predicted segment and the following one.
+     * 
+     * @return empty if the location is not close to them (full search needed)
+     */
+    public Optional<ReachedWaypointResult> snapPredicted(RouteGeometry route, Point location, int predictedSegment) {
+
+        int nearest = -1;
+        double nearestDistanceSq = Double.MAX_VALUE;
+        int last = Math.min(predictedSegment + 1, route.segmentCount() - 1);
+        for (int i = predictedSegment; i <= last; i++) {
+            var segmentDistanceSq = distanceToSegmentSq(route, i, location.x, location.y);
+            if (segmentDistanceSq < nearestDistanceSq) {
+                nearestDistanceSq = segmentDistanceSq;
+                nearest = i;
+            }
+        }
+        if (nearest < 0 || nearestDistanceSq > SNAPPED_DISTANCE * SNAPPED_DISTANCE)
+            return Optional.empty();
+        return Optional.of(toResult(route, nearest, location));
+    }
+
+    private static final double SNAPPED_DISTANCE = 25; // mercator
+    private static final double FURTHER_AWAY_DISTANCE = 50; // mercator
+    static final double HEADING_TOLERANCE_DEG = 60;
+
+    private int calcReachedSegment(RouteGeometry route, double px, double py, int reachedWaypointIdx,
+            double headingDeg) {
+
+        // calc distance from each linear segment (squared, mercator)
+        double nearestDistanceSq = Double.MAX_VALUE;
         int reachedWaypoint = -1;
-        for (int i = 0; i < (route.size() - 1); i++) {
-            var segment = new Segment(route.get(i), route.get(i + 1));
-            var segmentDistance = calcDistance(segment, location);
-            if (segmentDistance.distance < nearestSegment.distance) {
-                nearestSegment = segmentDistance;
+        for (int i = reachedWaypointIdx; i < route.segmentCount(); i++) {
+            var segmentDistanceSq = distanceToSegmentSq(route, i, px, py);
+            if (segmentDistanceSq < nearestDistanceSq && route.matchesHeading(i, headingDeg, HEADING_TOLERANCE_DEG)) {
+                nearestDistanceSq = segmentDistanceSq;
                 reachedWaypoint = i;
             } else { // getting further away again
-                if (nearestSegment.distance < 25 && segmentDistance.distance > 50) {
+                if (nearestDistanceSq < SNAPPED_DISTANCE * SNAPPED_DISTANCE
+                        && segmentDistanceSq > FURTHER_AWAY_DISTANCE * FURTHER_AWAY_DISTANCE) {
                     break; // seems we cant get closer, stop before iterating the entire route
                 }
             }
         }
-        Objects.requireNonNull(nearestSegment.segment);
+        return reachedWaypoint;
+    }
 
-        // recalculate actually correct distance
-        var correctDistance = haversineDistanceM(location, nearestSegment.nearestPointOnSegment);
-        nearestSegment = new NearestSegmentResult(nearestSegment.segment, nearestSegment.nearestPointOnSegment,
-                correctDistance);
+    /**
+     * Same result as {@link #calcReachedSegment}, but only the segments close to
+     * the location are visited: all other segments are further away than
+     * FURTHER_AWAY_DISTANCE, so they can neither become the nearest one (once a
+     * close segment is found) nor do they change where the sequential search
+     * would stop (directly after a snapped segment). Close segments pointing in
+     * another direction are skipped, but still count as visited.
+     */
+    private int calcReachedSegmentIndexed(RouteGeometry route, double px, double py, int reachedWaypointIdx,
+            double headingDeg) {
 
-        return new ReachedWaypointResult(nearestSegment, reachedWaypoint);
+        var index = route.getIndex();
+        var closeSegments = index.segmentsWithin(route, px, py, FURTHER_AWAY_DISTANCE, reachedWaypointIdx);
+
+        double nearestDistanceSq = Double.MAX_VALUE;
+        int reachedWaypoint = -1;
+        int previousSegment = -1;
+        for (int segment : closeSegments) {
+            boolean skippedFarSegments = reachedWaypoint >= 0 && segment > previousSegment + 1;
+            if (skippedFarSegments && nearestDistanceSq < SNAPPED_DISTANCE * SNAPPED_DISTANCE) {
+                break; // the sequential search stops at the first far segment
+            }
+            var segmentDistanceSq = distanceToSegmentSq(route, segment, px, py);
+            if (segmentDistanceSq < nearestDistanceSq
+                    && route.matchesHeading(segment, headingDeg, HEADING_TOLERANCE_DEG)) {
+                nearestDistanceSq = segmentDistanceSq;
+                reachedWaypoint = segment;
+            }
+            previousSegment = segment;
+        }
+        if (reachedWaypoint < 0) // no early stop possible, sequential search would visit all segments
+            return index.nearestSegment(route, px, py, reachedWaypointIdx, headingDeg);
+        return reachedWaypoint;
     }
 
-    NearestSegmentResult calcDistance(Segment s, Point p) {
+    private ReachedWaypointResult toResult(RouteGeometry route, int segmentIdx, Point location) {
 
-        var dop = new DistanceOp(s.toJts(), p.toJts());
+        var t = projectionFactor(route, segmentIdx, location.x, location.y);
+        int i = segmentIdx;
+        var nearestPoint = Point.ofMercator(
+                route.x(i) + t * (route.x(i + 1) - route.x(i)),
+                route.y(i) + t * (route.y(i + 1) - route.y(i)));
+        var segment = new Segment(
+                Point.of(route.x(i), route.y(i), route.lat(i), route.lon(i)),
+                Point.of(route.x(i + 1), route.y(i + 1), route.lat(i + 1), route.lon(i + 1)));
 
-        var distance = dop.distance();
-        var nearestPoints = dop.nearestPoints();
+        // recalculate actually correct distance
+        var correctDistance = haversineDistanceM(location, nearestPoint);
+        return new ReachedWaypointResult(new NearestSegmentResult(segment, nearestPoint, correctDistance), i);
+    }
 
-        return new NearestSegmentResult(s, Point.fromJts(nearestPoints[0]), distance);
+    /**
+     * squared (mercator) distance of the given point to the closest point of
+     * segment i
+     */
+    static double distanceToSegmentSq(RouteGeometry route, int i, double px, double py) {
+        var t = projectionFactor(route, i, px, py);
+        double dx = route.x(i) + t * (route.x(i + 1) - route.x(i)) - px;
+        double dy = route.y(i) + t * (route.y(i + 1) - route.y(i)) - py;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * position of the closest point of segment i, 0 = start, 1 = end
+     */
+    private static double projectionFactor(RouteGeometry route, int i, double px, double py) {
+        double ax = route.x(i);
+        double ay = route.y(i);
+        double dx = route.x(i + 1) - ax;
+        double dy = route.y(i + 1) - ay;
+        double lengthSq = dx * dx + dy * dy;
+        if (lengthSq == 0)
+            return 0;
+        double t = ((px - ax) * dx + (py - ay) * dy) / lengthSq;
+        return Math.max(0, Math.min(1, t));
     }
 
     private static double lonToMercatorX(double lon) {
@@ -251,7 +385,7 @@ public class RouteSnapper {
         return haversineDistanceM(p1.getLat(), p1.getLon(), p2.getLat(), p2.getLon());
     }
 
-    private static double haversineDistanceM(double lat1, double lon1, double lat2, double lon2) {
+    static double haversineDistanceM(double lat1, double lon1, double lat2, double lon2) {
         double latDistance = Math.toRadians(lat2 - lat1);
         double lonDistance = Math.toRadians(lon2 - lon1);
         double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
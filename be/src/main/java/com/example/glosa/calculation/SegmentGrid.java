@@ -0,0 +1,247 @@
+package com.example.glosa.calculation;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over all route segments (mercator), each registered in the
+ * cells it passes through. Cells are stored as sorted keys with offsets into
+ * one segment array, so a cell lookup is a binary search without any
+ * allocation.
+ */
+final class SegmentGrid {
+
+    static final double CELL_SIZE = 50; // mercator units, same as the snapping radius
+
+    private static final int CELL_BITS = 20;
+    private static final int CELL_OFFSET = 1 << (CELL_BITS - 1);
+    private static final int SEGMENT_BITS = 63 - 2 * CELL_BITS;
+
+    private final long[] cellKeys; // sorted
+    private final int[] cellStart; // segments of cell k: cellStart[k] until cellStart[k+1]
+    private final int[] segments; // sorted by index within each cell
+
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+
+    private SegmentGrid(long[] cellKeys, int[] cellStart, int[] segments, double[] bounds) {
+        this.cellKeys = cellKeys;
+        this.cellStart = cellStart;
+        this.segments = segments;
+        this.minX = bounds[0];
+        this.minY = bounds[1];
+        this.maxX = bounds[2];
+        this.maxY = bounds[3];
+    }
+
+    static SegmentGrid build(RouteGeometry route) {
+
+        int n = route.segmentCount();
+        if (n >= 1 << SEGMENT_BITS)
+            throw new IllegalArgumentException("too many segments: " + n);
+
+        double[] bounds = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+        // count (cell, segment) entries first to allocate the packed array once
+        var entryCount = new int[1];
+        for (int i = 0; i < n; i++) {
+            forEachCrossedCell(route, i, (cx, cy) -> entryCount[0]++);
+        }
+
+        // entry = cell key (high bits) | segment index (low bits) -> sorting orders by cell, then segment
+        var entries = new long[entryCount[0]];
+        var e = new int[1];
+        for (int i = 0; i < n; i++) {
+            int segment = i;
+            forEachCrossedCell(route, i, (cx, cy) -> entries[e[0]++] = (cellKey(cx, cy) << SEGMENT_BITS) | segment);
+            bounds[0] = Math.min(bounds[0], Math.min(route.x(i), route.x(i + 1)));
+            bounds[1] = Math.min(bounds[1], Math.min(route.y(i), route.y(i + 1)));
+            bounds[2] = Math.max(bounds[2], Math.max(route.x(i), route.x(i + 1)));
+            bounds[3] = Math.max(bounds[3], Math.max(route.y(i), route.y(i + 1)));
+        }
+        Arrays.sort(entries);
+
+        var keys = new long[entries.length];
+        var start = new int[entries.length + 1];
+        var segments = new int[entries.length];
+        int cells = 0;
+        for (int k = 0; k < entries.length; k++) {
+            long key = entries[k] >>> SEGMENT_BITS;
+            if (cells == 0 || keys[cells - 1] != key) {
+                keys[cells] = key;
+                start[cells] = k;
+                cells++;
+            }
+            segments[k] = (int) (entries[k] & ((1L << SEGMENT_BITS) - 1));
+        }
+        start[cells] = entries.length;
+
+        return new SegmentGrid(Arrays.copyOf(keys, cells), Arrays.copyOf(start, cells + 1), segments, bounds);
+    }
+
+    /**
+     * @return sorted, distinct indices of all segments (at or after fromIdx)
+     *         which are within the given (mercator) radius of the location
+     */
+    int[] segmentsWithin(RouteGeometry route, double px, double py, double radius, int fromIdx) {
+
+        double radiusSq = radius * radius;
+        int fromCx = cell(px - radius);
+        int toCx = cell(px + radius);
+        int fromCy = cell(py - radius);
+        int toCy = cell(py + radius);
+
+        int count = 0;
+        int[] result = new int[8];
+        for (int cx = fromCx; cx <= toCx; cx++) {
+            for (int cy = fromCy; cy <= toCy; cy++) {
+                int k = Arrays.binarySearch(cellKeys, cellKey(cx, cy));
+                if (k < 0)
+                    continue;
+                for (int s = cellStart[k]; s < cellStart[k + 1]; s++) {
+                    int segment = segments[s];
+                    if (segment < fromIdx || RouteSnapper.distanceToSegmentSq(route, segment, px, py) > radiusSq)
+                        continue;
+                    if (count == result.length)
+                        result = Arrays.copyOf(result, count * 2);
+                    result[count++] = segment;
+                }
+            }
+        }
+
+        // segments spanning several cells are found more than once
+        Arrays.sort(result, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || result[distinct - 1] != result[i])
+                result[distinct++] = result[i];
+        }
+        return Arrays.copyOf(result, distinct);
+    }
+
+    /**
+     * @return index of the nearest segment at or after fromIdx (the first one
+     *         in case of equal distances), -1 if there is none
+     */
+    int nearestSegment(RouteGeometry route, double px, double py, int fromIdx) {
+        return nearestSegment(route, px, py, fromIdx, Double.NaN);
+    }
+
+    /**
+     * @param headingDeg only segments matching this direction are considered
+     *                   (NaN: all)
+     * @return index of the nearest matching segment at or after fromIdx (the
+     *         first one in case of equal distances), -1 if there is none
+     */
+    int nearestSegment(RouteGeometry route, double px, double py, int fromIdx, double headingDeg) {
+
+        double maxRadius = Math.max(
+                Math.max(Math.abs(px - minX), Math.abs(px - maxX)),
+                Math.max(Math.abs(py - minY), Math.abs(py - maxY)));
+
+        // widen the search window until it contains a segment which is closer than
+        // the window radius (no segment outside of the window can be closer then)
+        for (double radius = CELL_SIZE; radius < maxRadius && cellsWithin(radius) <= cellKeys.length; radius *= 2) {
+            var nearest = nearestOf(route, segmentsWithin(route, px, py, radius, fromIdx), px, py, headingDeg);
+            if (nearest >= 0)
+                return nearest;
+        }
+
+        // far away from the entire route
+        int nearest = -1;
+        double nearestDistanceSq = Double.MAX_VALUE;
+        for (int i = fromIdx; i < route.segmentCount(); i++) {
+            if (!route.matchesHeading(i, headingDeg, RouteSnapper.HEADING_TOLERANCE_DEG))
+                continue;
+            var distanceSq = RouteSnapper.distanceToSegmentSq(route, i, px, py);
+            if (distanceSq < nearestDistanceSq) {
+                nearestDistanceSq = distanceSq;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    private static int nearestOf(RouteGeometry route, int[] candidates, double px, double py, double headingDeg) {
+        int nearest = -1;
+        double nearestDistanceSq = Double.MAX_VALUE;
+        for (int segment : candidates) {
+            if (!route.matchesHeading(segment, headingDeg, RouteSnapper.HEADING_TOLERANCE_DEG))
+                continue;
+            var distanceSq = RouteSnapper.distanceToSegmentSq(route, segment, px, py);
+            if (distanceSq < nearestDistanceSq) {
+                nearestDistanceSq = distanceSq;
+                nearest = segment;
+            }
+        }
+        return nearest;
+    }
+
+    private static double cellsWithin(double radius) {
+        double cellsPerAxis = 2 * radius / CELL_SIZE + 1;
+        return cellsPerAxis * cellsPerAxis;
+    }
+
+    private static int cell(double coordinate) {
+        return (int) Math.floor(coordinate / CELL_SIZE);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) (cx + CELL_OFFSET) << CELL_BITS) | (cy + CELL_OFFSET);
+    }
+
+    private interface CellVisitor {
+        void visit(int cx, int cy);
+    }
+
+    /**
+     * visits the cells the segment passes through (grid traversal along the
+     * segment), so long diagonal segments only occupy a band of cells instead
+     * of their whole bounding box
+     */
+    private static void forEachCrossedCell(RouteGeometry route, int i, CellVisitor visitor) {
+
+        double x0 = route.x(i);
+        double y0 = route.y(i);
+        double dx = route.x(i + 1) - x0;
+        double dy = route.y(i + 1) - y0;
+        int cx = cell(x0);
+        int cy = cell(y0);
+        int endCx = cell(route.x(i + 1));
+        int endCy = cell(route.y(i + 1));
+        int stepX = endCx > cx ? 1 : -1;
+        int stepY = endCy > cy ? 1 : -1;
+
+        // segment parameter t (0..1) at which the next cell border is crossed
+        double tDeltaX = dx == 0 ? Double.MAX_VALUE : CELL_SIZE / Math.abs(dx);
+        double tDeltaY = dy == 0 ? Double.MAX_VALUE : CELL_SIZE / Math.abs(dy);
+        double tMaxX = dx == 0 ? Double.MAX_VALUE : ((stepX > 0 ? cx + 1 : cx) * CELL_SIZE - x0) / dx;
+        double tMaxY = dy == 0 ? Double.MAX_VALUE : ((stepY > 0 ? cy + 1 : cy) * CELL_SIZE - y0) / dy;
+
+        visitor.visit(cx, cy);
+        while (cx != endCx || cy != endCy) { // always moves towards the end cell (robust to rounding)
+            boolean moveX = cx != endCx && (cy == endCy || tMaxX <= tMaxY);
+            boolean moveY = cy != endCy && (cx == endCx || tMaxY <= tMaxX);
+            if (moveX && moveY)
+                visitor.visit(cx + stepX, cy); // through a corner: also register a neighbour
+            if (moveX) {
+                cx += stepX;
+                tMaxX += tDeltaX;
+            }
+            if (moveY) {
+                cy += stepY;
+                tMaxY += tDeltaY;
+            }
+            visitor.visit(cx, cy);
+        }
+    }
+
+    /**
+     * number of (cell, segment) entries
+     */
+    int entryCount() {
+        return segments.length;
+    }
+
+}
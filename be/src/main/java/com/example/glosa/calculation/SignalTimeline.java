@@ -0,0 +1,246 @@
+package com.example.glosa.calculation;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightRtDataDeltaDto;
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightRtDataDto;
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightSignalState;
+
+/**
+ * Signal states of one traffic-light over time: observed states are kept in a
+ * ring buffer (epoch millis + state, sorted by time), the latest prediction is
+ * replaced as a whole. Lookups are binary searches, so calculating a
+ * recommendation neither sorts nor converts any data.
+ * Each change of the data gets a new version (unique across all timelines),
+ * so clients holding a recent version only need the changes since then.
+ */
+final class SignalTimeline {
+
+    static final int CAPACITY = 128;
+    static final int KEPT_VERSIONS = 8;
+
+    // seeded with the start time, so versions of a previous run are not mistaken as current ones
+    private static final AtomicLong VERSIONS = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    // observations, oldest at head
+    private final long[] times = new long[CAPACITY];
+    private final byte[] states = new byte[CAPACITY];
+    private int head;
+    private int size;
+
+    private long[] predictedTimes = new long[0];
+    private byte[] predictedStates = new byte[0];
+
+    // last applied inputs: the providers return the same (cached) lists until something changed
+    private List<TrafficLightRtDataDto> observations = null;
+    private List<TrafficLightRtDataDto> predictions = null;
+    private Snapshot snapshot = new Snapshot(0, List.of());
+    private final Deque<Snapshot> history = new ArrayDeque<>(); // latest last
+
+    record Transition(long epochMillis, TrafficLightSignalState state) {
+    }
+
+    /**
+     * @param data observations + predictions, latest first
+     */
+    record Snapshot(long version, List<TrafficLightRtDataDto> data) {
+    }
+
+    synchronized void update(List<TrafficLightRtDataDto> observations, List<TrafficLightRtDataDto> predictions) {
+
+        boolean changed = false;
+        if (observations != this.observations) {
+            observations.forEach(o -> insert(epochMillis(o), (byte) o.getResult().get()));
+            this.observations = observations;
+            changed = true;
+        }
+        if (predictions != this.predictions) {
+            var sorted = predictions.stream().sorted(Comparator.comparing(TrafficLightRtDataDto::getPhenomenonTime))
+                    .toList();
+            predictedTimes = sorted.stream().mapToLong(SignalTimeline::epochMillis).toArray();
+            predictedStates = new byte[sorted.size()];
+            for (int i = 0; i < sorted.size(); i++) {
+                predictedStates[i] = (byte) sorted.get(i).getResult().get();
+            }
+            this.predictions = predictions;
+            changed = true;
+        }
+        if (changed) {
+            var data = uniqueTimes(observations, predictions);
+            if (!data.equals(snapshot.data())) // e.g. a re-fetched but equal prediction
+                setSnapshot(new Snapshot(VERSIONS.incrementAndGet(), data));
+        }
+    }
+
+    /**
+     * one entry per phenomenon-time (an observation replaces a prediction for
+     * the same time), so clients and deltas can identify entries by their time
+     *
+     * @return latest first
+     */
+    private static List<TrafficLightRtDataDto> uniqueTimes(List<TrafficLightRtDataDto> observations,
+            List<TrafficLightRtDataDto> predictions) {
+        var byTime = new HashMap<Instant, TrafficLightRtDataDto>();
+        Stream.concat(observations.stream(), predictions.stream())
+                .forEach(d -> byTime.putIfAbsent(d.getPhenomenonTime().toInstant(), d));
+        return byTime.entrySet().stream().sorted(Map.Entry.<Instant, TrafficLightRtDataDto>comparingByKey().reversed())
+                .map(Map.Entry::getValue).toList();
+    }
+
+    private void setSnapshot(Snapshot snapshot) {
+        this.snapshot = snapshot;
+        history.addLast(snapshot);
+        if (history.size() > KEPT_VERSIONS)
+            history.removeFirst();
+    }
+
+    /**
+     * @return the observations and predictions of the last update, latest first
+     */
+    synchronized List<TrafficLightRtDataDto> getData() {
+        return snapshot.data();
+    }
+
+    synchronized Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Entries are identified by their phenomenon-time (unique within a
+     * snapshot): changed entries are contained in the delta like new ones.
+     * 
+     * @return the changes from the given version to the given snapshot, empty if
+     *         the version is unknown (too old, or of another traffic-light)
+     */
+    synchronized Optional<TrafficLightRtDataDeltaDto> changes(long fromVersion, Snapshot to) {
+
+        var from = history.stream().filter(s -> s.version() == fromVersion).findAny();
+        if (from.isEmpty())
+            return Optional.empty();
+        if (fromVersion == to.version())
+            return Optional.of(new TrafficLightRtDataDeltaDto(fromVersion, List.of(), List.of())); // not modified
+
+        var previous = new HashMap<Instant, TrafficLightRtDataDto>();
+        from.get().data().forEach(d -> previous.put(d.getPhenomenonTime().toInstant(), d));
+
+        var changed = new ArrayList<TrafficLightRtDataDto>();
+        for (var entry : to.data()) {
+            if (!Objects.equals(previous.remove(entry.getPhenomenonTime().toInstant()), entry))
+                changed.add(entry);
+        }
+        var removed = previous.values().stream().map(TrafficLightRtDataDto::getPhenomenonTime)
+                .sorted(Comparator.reverseOrder()).toList();
+        return Optional.of(new TrafficLightRtDataDeltaDto(fromVersion, changed, removed));
+    }
+
+    /**
+     * @return the first GREEN or RED state (observed or predicted) starting at or
+     *         after the given time, null if there is none
+     */
+    synchronized Transition nextGreenOrRed(long notBeforeEpochMillis) {
+
+        long observedTime = Long.MAX_VALUE;
+        byte observedState = -1;
+        for (int i = firstObservationAtOrAfter(notBeforeEpochMillis); i < size; i++) {
+            int idx = physical(i);
+            if (isGreenOrRed(states[idx])) {
+                observedTime = times[idx];
+                observedState = states[idx];
+                break;
+            }
+        }
+
+        long predictedTime = Long.MAX_VALUE;
+        byte predictedState = -1;
+        for (int i = firstPredictionAtOrAfter(notBeforeEpochMillis); i < predictedTimes.length; i++) {
+            if (isGreenOrRed(predictedStates[i])) {
+                predictedTime = predictedTimes[i];
+                predictedState = predictedStates[i];
+                break;
+            }
+        }
+
+        if (observedState < 0 && predictedState < 0)
+            return null;
+        return observedTime <= predictedTime
+                ? new Transition(observedTime, TrafficLightSignalState.get(observedState))
+                : new Transition(predictedTime, TrafficLightSignalState.get(predictedState));
+    }
+
+    synchronized int observationCount() {
+        return size;
+    }
+
+    private void insert(long time, byte state) {
+
+        int pos = firstObservationAtOrAfter(time);
+        if (pos < size && times[physical(pos)] == time) { // already known
+            states[physical(pos)] = state;
+            return;
+        }
+        if (size == CAPACITY) {
+            if (pos == 0)
+                return; // older than everything kept
+            head = (head + 1) % CAPACITY; // drop the oldest one
+            size--;
+            pos--;
+        }
+        for (int i = size; i > pos; i--) { // usually none: observations arrive in order
+            times[physical(i)] = times[physical(i - 1)];
+            states[physical(i)] = states[physical(i - 1)];
+        }
+        times[physical(pos)] = time;
+        states[physical(pos)] = state;
+        size++;
+    }
+
+    private int firstObservationAtOrAfter(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[physical(mid)] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int firstPredictionAtOrAfter(long time) {
+        int low = 0;
+        int high = predictedTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (predictedTimes[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int physical(int i) {
+        return (head + i) % CAPACITY;
+    }
+
+    private static boolean isGreenOrRed(byte state) {
+        return state == TrafficLightSignalState.GREEN.get() || state == TrafficLightSignalState.RED.get();
+    }
+
+    private static long epochMillis(TrafficLightRtDataDto dto) {
+        return dto.getPhenomenonTime().toInstant().toEpochMilli();
+    }
+
+}
@@ -1,32 +1,34 @@
 package com.example.glosa.calculation;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
-import java.util.function.Function;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import com.example.glosa.calculation.RouteSnapper.Point;
-import com.example.glosa.routing.PlannedRoute;
+import com.example.glosa.calculation.RouteSnapper.ReachedWaypointResult;
+import com.example.glosa.calculation.TripSessions.Fix;
+import com.example.glosa.calculation.TripSessions.Progress;
+import com.example.glosa.calculation.TripSessions.TripSession;
 import com.example.glosa.routing.PlannedRoute.PlannedRouteRepository;
 import com.example.glosa.trafficlightdata.TrafficLightRtDataPredictionService;
 import com.example.glosa.trafficlightdata.TrafficLightRtDataProvider;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
+import lombok.With;
 
 @Service
-@RequiredArgsConstructor
 public class SpeedRecommender {
 
     private final RouteLoader routeDataCache;
@@ -34,81 +36,228 @@ public class SpeedRecommender {
     private final TrafficLightRtDataProvider trafficLightDataProvider;
     private final TrafficLightRtDataPredictionService trafficLightPredictionService;
 
+    private final Map<String, SignalTimeline> signalTimelines = new ConcurrentHashMap<>(); // per traffic-light
+
+    private final Counter predictedSnaps;
+    private final Counter mispredictedSnaps;
+    private final Counter unpredictableSnaps;
+    private final Counter calculatedPolls;
+    private final Counter coalescedPolls;
+
+    public SpeedRecommender(RouteLoader routeDataCache, RouteSnapper snappingService,
+            TrafficLightRtDataProvider trafficLightDataProvider,
+            TrafficLightRtDataPredictionService trafficLightPredictionService, MeterRegistry meterRegistry) {
+        this.routeDataCache = routeDataCache;
+        this.snappingService = snappingService;
+        this.trafficLightDataProvider = trafficLightDataProvider;
+        this.trafficLightPredictionService = trafficLightPredictionService;
+        // hit ratio = hit / (hit + miss + unavailable)
+        this.predictedSnaps = snapCounter(meterRegistry, "hit");
+        this.mispredictedSnaps = snapCounter(meterRegistry, "miss");
+        this.unpredictableSnaps = snapCounter(meterRegistry, "unavailable");
+        this.calculatedPolls = pollCounter(meterRegistry, "calculated");
+        this.coalescedPolls = pollCounter(meterRegistry, "coalesced");
+    }
+
+    private static Counter snapCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("snapping.predicted").tag("result", result)
+                .description("snapping by dead reckoning (fast path) instead of searching the route")
+                .register(meterRegistry);
+    }
+
+    private static Counter pollCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("recommendation.polls").tag("result", result)
+                .description("polls of recommendations (coalesced: earlier than advised)")
+                .register(meterRegistry);
+    }
+
     public double NOTIFICATION_DISTANCE_M = 10_000; // more than 1km does probably not make much sense
 
-    public NextTrafficLightDto calculateSpeedRecommendation(String routeName, double lat, double lon, int reachedIdx,
-            Optional<Double> currentSpeed) {
+    /**
+     * snapping is calculated directly, the traffic-light data is requested
+     * asynchronously (observations, then prediction) without blocking the caller
+     */
+    public CompletableFuture<NextTrafficLightDto> calculateSpeedRecommendation(String routeName, double lat,
+            double lon, int reachedIdx, Optional<Double> currentSpeed) {
+        return calculateSpeedRecommendation(routeDataCache.getCompiledRoute(routeName), lat, lon, reachedIdx,
+                currentSpeed);
+    }
+
+    /**
+     * continues from the session's last snapped location and updates it with
+     * the result
+     */
+    public CompletableFuture<NextTrafficLightDto> calculateSpeedRecommendation(TripSession session, Fix fix) {
+        return calculateSpeedRecommendation(session, fix, Optional.empty());
+    }
+
+    /**
+     * Same as {@link #calculateSpeedRecommendation(TripSession, Fix)} for
+     * polling clients: a poll arriving before the advised nextPollAfterMs gets
+     * the last recommendation again (with the remaining time), if the client
+     * already holds its data.
+     * 
+     * @param knownDataVersion data version of the client's last recommendation:
+     *                         if still recent, only the changes since then are
+     *                         returned (as dataDelta instead of data)
+     */
+    public CompletableFuture<NextTrafficLightDto> pollSpeedRecommendation(TripSession session, Fix fix,
+            Optional<Long> knownDataVersion) {
+
+        long now = System.currentTimeMillis();
+        var lastPoll = session.getLastPoll();
+        if (lastPoll != null && now < lastPoll.notBeforeEpochMillis()) {
+            var last = lastPoll.recommendation();
+            var lastVersion = Optional.ofNullable(last.getDataVersion());
+            if (lastVersion.isEmpty() || lastVersion.equals(knownDataVersion)) {
+                coalescedPolls.increment();
+                return CompletableFuture.completedFuture(last
+                        .withData(null)
+                        .withDataDelta(lastVersion
+                                .map(v -> new TrafficLightRtDataDeltaDto(v, List.of(), List.of())).orElse(null))
+                        .withNextPollAfterMs(lastPoll.notBeforeEpochMillis() - now));
+            }
+        }
+
+        calculatedPolls.increment();
+        return calculateSpeedRecommendation(session, fix, knownDataVersion).thenApply(recommendation -> {
+            session.polled(recommendation,
+                    System.currentTimeMillis() + (long) (recommendation.getNextPollAfterMs() * POLL_TOLERANCE));
+            return recommendation;
+        });
+    }
 
-        var snapped = snap(routeName, lat, lon, reachedIdx);
+    private CompletableFuture<NextTrafficLightDto> calculateSpeedRecommendation(TripSession session, Fix fix,
+            Optional<Long> knownDataVersion) {
 
-        var route = routeDataCache.getRoute(routeName);
+        var route = session.getRoute();
+        var progress = session.getProgress();
 
-        var nextTlIdx = IntStream.range(
-                snapped.getReachedIdx() + 1, route.getPoints().size())
-                .filter(i -> route.getPoints().get(i).getTrafficLightId() != null).findFirst();
+        var snapped = snapPredicted(route, progress, fix)
+                .orElseGet(() -> snap(route, fix.lat(), fix.lon(), progress.reachedIdx(), headingOf(fix)));
+        session.update(snapped.getReachedIdx(),
+                route.getGeometry().distanceFromStartM(snapped.getLat(), snapped.getLon(), snapped.getReachedIdx()),
+                fix);
 
-        if (!nextTlIdx.isPresent()) { // no traffic-light ahead
-            return new NextTrafficLightDto(null, null, snapped, null, null, null);
+        return calculateSpeedRecommendation(route, snapped, Optional.ofNullable(fix.speed()), knownDataVersion);
+    }
+
+    /**
+     * recalculates the recommendation for the session's last fix (e.g. for
+     * updated traffic-light data) without changing the session
+     * 
+     * @throws IllegalStateException if there is no fix yet
+     */
+    public CompletableFuture<NextTrafficLightDto> recalculateSpeedRecommendation(TripSession session) {
+
+        var progress = session.getProgress();
+        var fix = progress.fix();
+        if (fix == null)
+            throw new IllegalStateException("no fix yet");
+
+        var snapped = snap(session.getRoute(), fix.lat(), fix.lon(), progress.reachedIdx(), headingOf(fix));
+        return calculateSpeedRecommendation(session.getRoute(), snapped, Optional.ofNullable(fix.speed()),
+                Optional.empty());
+    }
+
+    public CompletableFuture<NextTrafficLightDto> calculateSpeedRecommendation(CompiledRoute route, double lat,
+            double lon, int reachedIdx, Optional<Double> currentSpeed) {
+        return calculateSpeedRecommendation(route, snap(route, lat, lon, reachedIdx, Double.NaN), currentSpeed,
+                Optional.empty());
+    }
+
+    private CompletableFuture<NextTrafficLightDto> calculateSpeedRecommendation(CompiledRoute route,
+            SnappedToDto snapped, Optional<Double> currentSpeed, Optional<Long> knownDataVersion) {
+
+        var nextTlIdx = route.nextTrafficLightIdx(snapped.getReachedIdx());
+
+        if (nextTlIdx < 0) { // no traffic-light ahead
+            return CompletableFuture.completedFuture(withoutData(null, null, snapped, MAX_POLL_MS));
         }
 
-        var routePoints = routeDataCache.getRoutePoints(routeName);
-        var relevantPart = new ArrayList<>(routePoints.subList(snapped.getReachedIdx(), nextTlIdx.getAsInt() + 1));
-        relevantPart.set(0, Point.ofLatLon(snapped.getLat(), snapped.getLon()));
-        var distanceM = snappingService.getLengthHaversineM(relevantPart);
+        var distanceM = route.getGeometry()
+                .distanceAlongRouteM(snapped.getLat(), snapped.getLon(), snapped.getReachedIdx(), nextTlIdx);
 
-        var trafficLight = route.getPoints().get(nextTlIdx.getAsInt());
-        if (distanceM > NOTIFICATION_DISTANCE_M) {
-            return new NextTrafficLightDto(trafficLight.getTrafficLightId(), distanceM, snapped, null, null, null);
+        var trafficLightId = route.trafficLightId(nextTlIdx);
+        if (distanceM > NOTIFICATION_DISTANCE_M) { // nothing to show until within the notification distance
+            var pollAfterMs = toPollInterval((distanceM - NOTIFICATION_DISTANCE_M) / MAX_SPEED_MS * 1000);
+            return CompletableFuture.completedFuture(withoutData(trafficLightId, distanceM, snapped, pollAfterMs));
         }
 
-        var trafficLightData = trafficLightDataProvider.getObservations(trafficLight.getDatastreamId());
+        return trafficLightDataProvider.getObservationsAsync(route.datastreamId(nextTlIdx))
+                .thenCompose(trafficLightData -> trafficLightPredictionService
+                        .getPredictionAsync(trafficLightId, trafficLightData)
+                        .thenApply(predictions -> toRecommendation(trafficLightId, distanceM, snapped,
+                                trafficLightData, predictions, currentSpeed, knownDataVersion)));
+    }
 
-        var predictions = trafficLightPredictionService.getPrediction(trafficLight.getTrafficLightId(),
-                trafficLightData);
+    private NextTrafficLightDto toRecommendation(String trafficLightId, double distanceM, SnappedToDto snapped,
+            List<TrafficLightRtDataDto> trafficLightData, List<TrafficLightRtDataDto> predictions,
+            Optional<Double> currentSpeed, Optional<Long> knownDataVersion) {
 
-        Function<TrafficLightRtDataDto, OffsetDateTime> dateExtractor = dto -> dto.getPhenomenonTime();
-        Comparator<TrafficLightRtDataDto> byTime = Comparator.comparing(dateExtractor);
-        var tldWithPredictions = Stream.concat(trafficLightData.stream(), predictions.stream())
-                .sorted(byTime.reversed())
-                .toList();
+        var timeline = signalTimelines.computeIfAbsent(trafficLightId, id -> new SignalTimeline());
+        timeline.update(trafficLightData, predictions); // no-op while the (cached) inputs are unchanged
+        var snapshot = timeline.getSnapshot();
+        var delta = knownDataVersion.flatMap(version -> timeline.changes(version, snapshot));
 
-        Optional<RecommendationData> necessarySpeed = calcNecessarySpeed(distanceM, tldWithPredictions);
+        Optional<RecommendationData> necessarySpeed = calcNecessarySpeed(distanceM, timeline);
         Optional<Recommendation> recommendation = Optional.empty();
         if (necessarySpeed.isPresent() && currentSpeed.isPresent() && currentSpeed.get() > 0) {
             recommendation = Optional.of(getRecommendation(currentSpeed.get(), necessarySpeed.get()));
         }
 
-        return new NextTrafficLightDto(trafficLight.getTrafficLightId(), distanceM, snapped, tldWithPredictions,
-                necessarySpeed.map(rd -> rd.getNecessarySpeed()).orElse(null), recommendation.orElse(null));
+        return new NextTrafficLightDto(trafficLightId, distanceM, snapped, delta.isEmpty() ? snapshot.data() : null,
+                necessarySpeed.map(rd -> rd.getNecessarySpeed()).orElse(null), recommendation.orElse(null),
+                snapshot.version(), delta.orElse(null), calcNextPollAfterMs(distanceM, currentSpeed, timeline));
     }
 
-    private static final double MAX_SPEED_MS = 28 / 3.6; /* km/h */
-
-    private Optional<RecommendationData> calcNecessarySpeed(double distanceM,
-            List<TrafficLightRtDataDto> tldWithPredictions) {
-        OffsetDateTime now = OffsetDateTime.now();
-        var usefulStates = Set.of(TrafficLightSignalState.GREEN, TrafficLightSignalState.RED);
-        Function<TrafficLightRtDataDto, OffsetDateTime> dateExtractor = dto -> dto.getPhenomenonTime();
-        Comparator<TrafficLightRtDataDto> byTimeAsc = Comparator.comparing(dateExtractor);
-        tldWithPredictions = tldWithPredictions.stream().sorted(byTimeAsc).toList();
-        Stream<Optional<RecommendationData>> rds = tldWithPredictions.stream()
-                .filter(rtd -> usefulStates.contains(rtd.getResult()))
-                .map(rtd -> {
-
-                    OffsetDateTime time = rtd.getPhenomenonTime();
-                    long timeUntil = ChronoUnit.SECONDS.between(now, time);
+    private static NextTrafficLightDto withoutData(String trafficLightId, Double distanceM, SnappedToDto snapped,
+            long nextPollAfterMs) {
+        return new NextTrafficLightDto(trafficLightId, distanceM, snapped, null, null, null, null, null,
+                nextPollAfterMs);
+    }
 
-                    if (timeUntil <= 0)
-                        return Optional.empty();
+    static final long MIN_POLL_MS = 1_000;
+    static final long DEFAULT_POLL_MS = 10_000;
+    static final long MAX_POLL_MS = 30_000;
+    private static final double POLL_TOLERANCE = 0.75; // earlier polls are coalesced (allows for client jitter)
+
+    /**
+     * half of the time until the next event (the next GREEN/RED phase starts or
+     * the traffic-light is reached at the current speed), so the client gets
+     * the changed recommendation in time
+     */
+    private long calcNextPollAfterMs(double distanceM, Optional<Double> currentSpeed, SignalTimeline timeline) {
+        long now = System.currentTimeMillis();
+        double untilEventMs = Double.MAX_VALUE;
+        var next = timeline.nextGreenOrRed(now);
+        if (next != null)
+            untilEventMs = next.epochMillis() - now;
+        if (currentSpeed.isPresent() && currentSpeed.get() > 0)
+            untilEventMs = Math.min(untilEventMs, distanceM / currentSpeed.get() * 1000);
+        if (untilEventMs == Double.MAX_VALUE)
+            return DEFAULT_POLL_MS;
+        return toPollInterval(untilEventMs / 2);
+    }
 
-                    double necessarySpeed = distanceM / timeUntil;
+    private static long toPollInterval(double ms) {
+        return Math.max(MIN_POLL_MS, Math.min(MAX_POLL_MS, (long) ms));
+    }
 
-                    if (necessarySpeed > MAX_SPEED_MS)
-                        return Optional.empty();
+    private static final double MAX_SPEED_MS = 28 / 3.6; /* km/h */
 
-                    return Optional.of(new RecommendationData(necessarySpeed, rtd.getResult()));
-                });
-        return rds.filter(Optional::isPresent).map(Optional::get).findFirst();
+    /**
+     * the first GREEN/RED state which is reachable without going faster than
+     * MAX_SPEED_MS (in whole seconds from now)
+     */
+    private Optional<RecommendationData> calcNecessarySpeed(double distanceM, SignalTimeline timeline) {
+        long now = System.currentTimeMillis();
+        long minSecondsUntil = Math.max(1, (long) Math.ceil(distanceM / MAX_SPEED_MS));
+        var next = timeline.nextGreenOrRed(now + minSecondsUntil * 1000);
+        if (next == null)
+            return Optional.empty();
+        long timeUntil = (next.epochMillis() - now) / 1000;
+        return Optional.of(new RecommendationData(distanceM / timeUntil, next.state()));
     }
 
     @Data
@@ -147,11 +296,65 @@ public class SpeedRecommender {
         }
     }
 
-    private SnappedToDto snap(String name, double lat, double lon, int reachedIdx) {
-        var route = routeDataCache.getRoutePoints(name);
+    private static final double MAX_PREDICTION_S = 30; // dead reckoning gets too inaccurate
+
+    /**
+     * advances the last snapped location by the reported speed, then only checks
+     * the segments around the predicted location
+     */
+    private Optional<SnappedToDto> snapPredicted(CompiledRoute compiledRoute, Progress progress, Fix fix) {
+
+        var lastFix = progress.fix();
+        Double speed = fix.speed(); // m/s
+        if (speed == null && lastFix != null)
+            speed = lastFix.speed();
+        double elapsedS = lastFix == null ? 0 : Duration.between(lastFix.time(), fix.time()).toMillis() / 1000d;
+        if (speed == null || elapsedS <= 0 || elapsedS > MAX_PREDICTION_S) {
+            unpredictableSnaps.increment();
+            return Optional.empty();
+        }
+
+        var route = compiledRoute.getGeometry();
+        var predictedSegment = route.segmentAt(progress.offsetM() + speed * elapsedS);
+        var snapped = snappingService.snapPredicted(route, Point.ofLatLon(fix.lat(), fix.lon()), predictedSegment);
+
+        (snapped.isPresent() ? predictedSnaps : mispredictedSnaps).increment();
+        return snapped.map(SpeedRecommender::toSnappedToDto);
+    }
+
+    private static final double REACQUIRE_DISTANCE_M = 50;
+    private static final double MIN_HEADING_SPEED_MS = 1; // gps headings are noise when standing still
+
+    /**
+     * @return NaN if the fix has no reliable heading
+     */
+    private static double headingOf(Fix fix) {
+        if (fix.heading() == null || (fix.speed() != null && fix.speed() < MIN_HEADING_SPEED_MS))
+            return Double.NaN;
+        return fix.heading();
+    }
+
+    /**
+     * @param headingDeg prevents snapping to the other direction of a route
+     *                   which doubles back within the backwards search window
+     */
+    private SnappedToDto snap(CompiledRoute compiledRoute, double lat, double lon, int reachedIdx,
+            double headingDeg) {
+        var route = compiledRoute.getGeometry();
+        var location = Point.ofLatLon(lat, lon);
         var snapped = snappingService.calcReachedWaypointIdx(
-                route, Point.ofLatLon(lat, lon),
-                Math.max(reachedIdx - 5, 0)); // limited backwards search
+                route, location,
+                Math.max(reachedIdx - 5, 0), // limited backwards search
+                headingDeg);
+        if (snapped.getDistance() > REACQUIRE_DISTANCE_M) { // e.g. stale reachedIdx after a gps jump
+            var reacquired = snappingService.reacquire(route, location, headingDeg);
+            if (reacquired.getDistance() < snapped.getDistance())
+                snapped = reacquired;
+        }
+        return toSnappedToDto(snapped);
+    }
+
+    private static SnappedToDto toSnappedToDto(ReachedWaypointResult snapped) {
         return new SnappedToDto(
                 snapped.getNearestPointOnSegment().getLat(),
                 snapped.getNearestPointOnSegment().getLon(),
@@ -164,27 +367,15 @@ public class SpeedRecommender {
 
         private final PlannedRouteRepository repository;
 
-        @Cacheable("routePoints")
-        List<Point> getRoutePoints(String name) {
-
-            var dbData = repository.findByName(name).orElseThrow().getPoints();
-            List<Point> mapped = dbData.stream().map(prp -> Point.ofLatLon(prp.getLat(), prp.getLon())).toList();
-
-            // calc distance to next point (cached)
-            var nextPoints = mapped.subList(1, mapped.size()).iterator();
-            mapped.subList(0, mapped.size() - 1).stream()
-                    .forEach(p -> p.setDistanceToNext(RouteSnapper.haversineDistanceM(p, nextPoints.next())));
-
-            return Collections.unmodifiableList(mapped);
-        }
-
-        @Cacheable("route")
-        PlannedRoute getRoute(String name) {
-            return repository.findByName(name).orElseThrow();
+        @Cacheable(CompiledRoute.CACHE_NAME) // bounded, evicted when the route is (re-)created or deleted
+        @Transactional(readOnly = true)
+        CompiledRoute getCompiledRoute(String name) {
+            return CompiledRoute.compile(repository.findByName(name).orElseThrow());
         }
     }
 
     @Data
+    @With
     @RequiredArgsConstructor
     public static class NextTrafficLightDto {
         private final String trafficLightId;
@@ -193,6 +384,12 @@ public class SpeedRecommender {
         private final List<TrafficLightRtDataDto> data;
         private final Double necessarySpeed;
         private final Recommendation recommendation;
+        /** to be sent with the next request */
+        private final Long dataVersion;
+        /** instead of data, if the client already knows a recent version */
+        private final TrafficLightRtDataDeltaDto dataDelta;
+        /** earlier polls get the same recommendation */
+        private final Long nextPollAfterMs;
     }
 
     enum Recommendation {
@@ -214,6 +411,19 @@ public class SpeedRecommender {
         private final TrafficLightSignalState result;
     }
 
+    /**
+     * changes from the client's data version: entries with a removed time are
+     * dropped, changed entries replace the ones with the same time (no changes:
+     * not modified)
+     */
+    @Data
+    @RequiredArgsConstructor
+    public static class TrafficLightRtDataDeltaDto {
+        private final long fromVersion;
+        private final List<TrafficLightRtDataDto> changed;
+        private final List<OffsetDateTime> removed;
+    }
+
     public enum TrafficLightSignalState {
         // https://tld.iot.hamburg.de/v1.1/Datastreams(50850)
         // 0=dark,1=red,2=amber,3=green,4=red-amber,5=amber-flashing,6=green-flashing,9=unknown
@@ -0,0 +1,103 @@
+package com.example.glosa.calculation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Reduces a recorded track to a maximum number of points for display
+ * (Douglas-Peucker on the mercator projection, limited by point count instead
+ * of tolerance): starting with the first and the last point, the point
+ * furthest away from the simplified track is added until the limit is
+ * reached, so the points which shape the track most are kept first.
+ */
+public final class TrackSimplifier {
+
+    private static final double NEGLIGIBLE_DISTANCE = 0.5; // mercator, does not change the drawing
+
+    private TrackSimplifier() {
+    }
+
+    /**
+     * @return the given track if it has at most maxPoints (at least 2), else
+     *         the selected points in their original order
+     */
+    public static <T> List<T> simplify(List<T> track, ToDoubleFunction<T> latExtractor,
+            ToDoubleFunction<T> lonExtractor, int maxPoints) {
+
+        maxPoints = Math.max(maxPoints, 2);
+        if (track.size() <= maxPoints)
+            return track;
+
+        var keep = simplify(RouteGeometry.of(track, latExtractor, lonExtractor), maxPoints);
+        var result = new ArrayList<T>(maxPoints);
+        for (int i = 0; i < keep.length; i++) {
+            if (keep[i])
+                result.add(track.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * points strictly between start and end, the furthest one first
+     */
+    private record Range(int start, int end, int furthest, double distanceSq) {
+    }
+
+    static boolean[] simplify(RouteGeometry track, int maxPoints) {
+
+        int n = track.size();
+        var keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        int kept = 2;
+
+        var ranges = new PriorityQueue<Range>((a, b) -> Double.compare(b.distanceSq(), a.distanceSq()));
+        addRange(track, 0, n - 1, ranges);
+        while (kept < maxPoints && !ranges.isEmpty()) {
+            var range = ranges.poll();
+            if (range.distanceSq() < NEGLIGIBLE_DISTANCE * NEGLIGIBLE_DISTANCE)
+                break; // only points (almost) on the simplified track left
+            keep[range.furthest()] = true;
+            kept++;
+            addRange(track, range.start(), range.furthest(), ranges);
+            addRange(track, range.furthest(), range.end(), ranges);
+        }
+        return keep;
+    }
+
+    private static void addRange(RouteGeometry track, int start, int end, PriorityQueue<Range> ranges) {
+        if (end - start < 2)
+            return;
+        int furthest = -1;
+        double furthestDistanceSq = -1;
+        for (int i = start + 1; i < end; i++) {
+            double distanceSq = distanceToSegmentSq(track, start, end, i);
+            if (distanceSq > furthestDistanceSq) {
+                furthestDistanceSq = distanceSq;
+                furthest = i;
+            }
+        }
+        ranges.add(new Range(start, end, furthest, furthestDistanceSq));
+    }
+
+    /**
+     * squared (mercator) distance of point i to the segment from point a to
+     * point b (also for a = b, e.g. a closed loop)
+     */
+    private static double distanceToSegmentSq(RouteGeometry track, int a, int b, int i) {
+        double ax = track.x(a);
+        double ay = track.y(a);
+        double dx = track.x(b) - ax;
+        double dy = track.y(b) - ay;
+        double px = track.x(i) - ax;
+        double py = track.y(i) - ay;
+        double lengthSq = dx * dx + dy * dy;
+        double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSq));
+        double ex = px - t * dx;
+        double ey = py - t * dy;
+        return ex * ex + ey * ey;
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.example.glosa.calculation;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.glosa.calculation.SpeedRecommender.NextTrafficLightDto;
+import com.example.glosa.calculation.SpeedRecommender.RouteLoader;
+import com.example.glosa.tracking.TrackedTripRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * In-memory state of active trips (compiled route, last snapped waypoint,
+ * last fix), so calculating recommendations neither loads entities nor relies
+ * on progress state sent by the client. Sessions are created when a trip is
+ * started (or on the first request after a restart), and evicted when the trip
+ * ends or after the idle-timeout.
+ */
+@Service
+public class TripSessions {
+
+    private final RouteLoader routeLoader;
+    private final TrackedTripRepository tripRepository;
+
+    private final Cache<Long, TripSession> sessions;
+
+    TripSessions(RouteLoader routeLoader, TrackedTripRepository tripRepository,
+            @Value("${tracking.session.idle-timeout}") Duration idleTimeout) {
+        this.routeLoader = routeLoader;
+        this.tripRepository = tripRepository;
+        this.sessions = Caffeine.newBuilder()
+                .expireAfterAccess(idleTimeout)
+                .build();
+    }
+
+    public void start(long tripId, String routeName) {
+        sessions.put(tripId, new TripSession(routeLoader.getCompiledRoute(routeName)));
+    }
+
+    /**
+     * @throws java.util.NoSuchElementException if there is no such trip
+     */
+    public TripSession get(long tripId) {
+        return sessions.get(tripId, id -> new TripSession( // e.g. after a restart
+                routeLoader.getCompiledRoute(tripRepository.findRouteNameById(id).orElseThrow())));
+    }
+
+    /**
+     * neither creates the session nor resets its idle-timeout
+     */
+    public Optional<TripSession> getIfPresent(long tripId) {
+        return Optional.ofNullable(sessions.policy().getIfPresentQuietly(tripId));
+    }
+
+    public void end(long tripId) {
+        sessions.invalidate(tripId);
+    }
+
+    /**
+     * @param speed   m/s, nullable
+     * @param heading degrees clockwise from north, nullable
+     */
+    public record Fix(OffsetDateTime time, double lat, double lon, Double speed, Double heading) {
+    }
+
+    /**
+     * @param offsetM distance along the route of the last snapped location
+     * @param fix     null before the first fix
+     */
+    public record Progress(int reachedIdx, double offsetM, Fix fix) {
+    }
+
+    /**
+     * @param notBeforeEpochMillis earlier polls get the same recommendation
+     */
+    record Poll(NextTrafficLightDto recommendation, long notBeforeEpochMillis) {
+    }
+
+    public static final class TripSession {
+
+        private final CompiledRoute route;
+
+        private Progress progress = new Progress(0, 0, null);
+        private Poll lastPoll; // nullable
+
+        private TripSession(CompiledRoute route) {
+            this.route = route;
+        }
+
+        public CompiledRoute getRoute() {
+            return route;
+        }
+
+        public synchronized Progress getProgress() {
+            return progress;
+        }
+
+        public int getReachedIdx() {
+            return getProgress().reachedIdx();
+        }
+
+        /**
+         * @return null before the first fix
+         */
+        public Fix getLastFix() {
+            return getProgress().fix();
+        }
+
+        /**
+         * ignored if a later fix was already applied (e.g. overlapping requests)
+         */
+        public synchronized void update(int reachedIdx, double offsetM, Fix fix) {
+            if (progress.fix() != null && !fix.time().isAfter(progress.fix().time()))
+                return;
+            this.progress = new Progress(reachedIdx, offsetM, fix);
+        }
+
+        synchronized Poll getLastPoll() {
+            return lastPoll;
+        }
+
+        synchronized void polled(NextTrafficLightDto recommendation, long notBeforeEpochMillis) {
+            this.lastPoll = new Poll(recommendation, notBeforeEpochMillis);
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.example.glosa.config;
+
+import java.time.Duration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Shared client for all upstream services (traffic-light API, API-proxy,
+ * prediction service): pooled keep-alive connections and the application
+ * ObjectMapper (incl. java-time support) for streaming (de-)serialization.
+ * Requests are measured per upstream (http.client.requests, tagged by host and
+ * uri template), the connection pools per remote address
+ * (reactor.netty.connection.provider.*).
+ */
+@Configuration
+class UpstreamClientConfig {
+
+    @Bean
+    public WebClient webClient(WebClient.Builder builder,
+            @Value("${tld.client.max-connections}") int maxConnections,
+            @Value("${tld.client.max-idle-time}") Duration maxIdleTime,
+            @Value("${tld.client.timeout}") Duration timeout) {
+
+        var connectionProvider = ConnectionProvider.builder("upstream")
+                .maxConnections(maxConnections) // per remote address
+                .maxIdleTime(maxIdleTime)
+                .evictInBackground(maxIdleTime)
+                .pendingAcquireTimeout(timeout)
+                .metrics(true)
+                .build();
+
+        var httpClient = HttpClient.create(connectionProvider)
+                .keepAlive(true)
+                .responseTimeout(timeout);
+
+        return builder.clientConnector(new ReactorClientHttpConnector(httpClient)).build();
+    }
+
+}
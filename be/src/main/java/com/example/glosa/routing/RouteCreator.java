@@ -9,12 +9,17 @@ import java.util.stream.IntStream;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
+import org.springframework.cache.CacheManager;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 
+import com.example.glosa.calculation.CompiledRoute;
+import com.example.glosa.calculation.RouteGeometry;
 import com.example.glosa.calculation.RouteSnapper;
 import com.example.glosa.calculation.RouteSnapper.Point;
 import com.example.glosa.calculation.RouteSnapper.ReachedWaypointResult;
@@ -39,6 +44,7 @@ class RouteCreator {
     private final RouteSnapper routeSnappingCalculator;
     private final TrafficLightPositionProvider trafficLightPositionProvider;
     private final PlannedRouteRepository routeRepository;
+    private final CacheManager cacheManager;
 
     @Transactional
     PlannedRoute getOrCreate(String name, Optional<Double> distanceFromRouteThreshold) {
@@ -56,6 +62,26 @@ class RouteCreator {
     @Transactional
     void deleteByName(String name) {
         routeRepository.delete(routeRepository.findByName(name).get());
+        evictCompiledRoute(name);
+    }
+
+    /**
+     * after the commit: evicting earlier lets a concurrent load re-cache the
+     * old route until the next eviction
+     */
+    private void evictCompiledRoute(String name) {
+        Runnable evict = () -> Optional.ofNullable(cacheManager.getCache(CompiledRoute.CACHE_NAME))
+                .ifPresent(cache -> cache.evict(name));
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            evict.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                evict.run();
+            }
+        });
     }
 
     private PlannedRoute createRoute(List<PlannedRoutePoint> plainRoute, List<String> trafficLightIds,
@@ -66,13 +92,14 @@ class RouteCreator {
 
         var route = createRouteIntern(plainRoute, trafficLights, distanceFromRouteThreshold);
         route.setName(name);
-        return routeRepository.save(route);
+        route = routeRepository.save(route);
+        evictCompiledRoute(name); // re-created under an existing name
+        return route;
     }
 
     private PlannedRoute createRouteIntern(List<PlannedRoutePoint> plainRoute,
             List<PlannedRoutePoint> trafficLights, Optional<Double> distanceFromRouteThreshold) {
-        List<Point> routePoints = new ArrayList<>(
-                plainRoute.stream().map(prp -> Point.ofLatLon(prp.getLat(), prp.getLon())).toList());
+        var routeGeometry = RouteGeometry.of(plainRoute, PlannedRoutePoint::getLat, PlannedRoutePoint::getLon);
 
         // TODO: remove unused points on (almost) linear segments
 
@@ -81,16 +108,17 @@ class RouteCreator {
 
         for (var trafficLight : trafficLights) {
 
+            var location = Point.ofLatLon(trafficLight.getLat(), trafficLight.getLon());
             var params = RouteSnappingParameter.builder()
-                    .route(routePoints)
-                    .location(Point.ofLatLon(trafficLight.getLat(), trafficLight.getLon()))
+                    .location(location)
                     .context(trafficLight.getTrafficLightId());
 
             distanceFromRouteThreshold.ifPresent(params::distanceFromRouteThresholdM);
             previouslyReachedWaypoint.ifPresent(params::previouslyReachedWaypointIdx);
 
-            ReachedWaypointResult result = routeSnappingCalculator.insert(params.build());
+            ReachedWaypointResult result = routeSnappingCalculator.snap(routeGeometry, params.build());
             int insertionIdx = result.getReachedWaypointIdx() + 1;
+            routeGeometry = routeGeometry.withInsertedPoint(insertionIdx, location);
             mergedRoute.add(insertionIdx, trafficLight);
 
             // keep read-order, even when traffic-lights belong to the same crossing
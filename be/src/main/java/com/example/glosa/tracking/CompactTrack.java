@@ -0,0 +1,173 @@
+package com.example.glosa.tracking;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+
+/**
+ * Storage format of the positions of a finished trip (see
+ * {@link TrackedTrip#getCompactedTrack()}): one column per attribute, each
+ * value stored as the zigzag varint of its difference to the previous value
+ * of the column, so consecutive fixes mostly take 1-3 bytes per attribute.
+ * <p>
+ * Measurement-times are kept in microseconds (like postgres), coordinates in
+ * 1e-7 degrees (~1 cm), all other attributes in hundredths of their unit.
+ * Nullable attributes store 0 for null and the difference + 1 otherwise.
+ */
+final class CompactTrack {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final double COORDINATE_SCALE = 1e7;
+    private static final double SCALE = 1e2;
+
+    private CompactTrack() {
+    }
+
+    private record Column(Function<TrackedPosition, Double> getter, double scale) {
+    }
+
+    private static final List<Column> COLUMNS = List.of(
+            new Column(TrackedPosition::getLat, COORDINATE_SCALE),
+            new Column(TrackedPosition::getLng, COORDINATE_SCALE),
+            new Column(TrackedPosition::getAccuracy, SCALE),
+            new Column(TrackedPosition::getAlt, SCALE),
+            new Column(TrackedPosition::getAltAccuracy, SCALE),
+            new Column(TrackedPosition::getHeading, SCALE),
+            new Column(TrackedPosition::getSpeed, SCALE));
+
+    /**
+     * @param positions ordered by measurement-time
+     */
+    static byte[] encode(List<TrackedPosition> positions) {
+
+        var out = new ByteArrayOutputStream(positions.size() * 16);
+        out.write(FORMAT_VERSION);
+        writeVarint(out, positions.size());
+
+        long previous = 0;
+        for (var position : positions) {
+            long micros = toEpochMicros(position.getMeasurementTime());
+            writeVarint(out, zigzag(micros - previous));
+            previous = micros;
+        }
+        previous = 0;
+        for (var position : positions) {
+            long offset = position.getMeasurementTime().getOffset().getTotalSeconds();
+            writeVarint(out, zigzag(offset - previous));
+            previous = offset;
+        }
+        for (var column : COLUMNS) {
+            previous = 0;
+            for (var position : positions) {
+                var value = column.getter().apply(position);
+                if (value == null) {
+                    writeVarint(out, 0);
+                } else {
+                    long scaled = Math.round(value * column.scale());
+                    writeVarint(out, zigzag(scaled - previous) + 1);
+                    previous = scaled;
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static List<TrackedPosition> decode(byte[] track) {
+
+        var in = ByteBuffer.wrap(track);
+        byte version = in.get();
+        if (version != FORMAT_VERSION)
+            throw new IllegalArgumentException("unknown compact track format " + version);
+        int size = (int) readVarint(in);
+
+        var micros = new long[size];
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            previous += unzigzag(readVarint(in));
+            micros[i] = previous;
+        }
+        var positions = new ArrayList<TrackedPosition>(size);
+        previous = 0;
+        for (int i = 0; i < size; i++) {
+            previous += unzigzag(readVarint(in));
+            var offset = ZoneOffset.ofTotalSeconds((int) previous);
+            positions.add(new TrackedPosition(null, null, fromEpochMicros(micros[i], offset)));
+        }
+        var values = new Double[COLUMNS.size()][size];
+        for (int c = 0; c < COLUMNS.size(); c++) {
+            double scale = COLUMNS.get(c).scale();
+            previous = 0;
+            for (int i = 0; i < size; i++) {
+                long encoded = readVarint(in);
+                if (encoded != 0) {
+                    previous += unzigzag(encoded - 1);
+                    values[c][i] = previous / scale;
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            var position = positions.get(i);
+            position.setLat(values[0][i]);
+            position.setLng(values[1][i]);
+            position.setAccuracy(values[2][i]);
+            position.setAlt(values[3][i]);
+            position.setAltAccuracy(values[4][i]);
+            position.setHeading(values[5][i]);
+            position.setSpeed(values[6][i]);
+        }
+        return positions;
+    }
+
+    /**
+     * @return the measurement-time of the last position (empty track: null)
+     */
+    static OffsetDateTime lastMeasurementTime(byte[] track) {
+        var positions = decode(track);
+        return positions.isEmpty() ? null : positions.get(positions.size() - 1).getMeasurementTime();
+    }
+
+    private static long toEpochMicros(OffsetDateTime time) {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, time.toInstant());
+    }
+
+    private static OffsetDateTime fromEpochMicros(long micros, ZoneOffset offset) {
+        var instant = Instant.EPOCH.plus(micros, ChronoUnit.MICROS);
+        return OffsetDateTime.ofInstant(instant, offset);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+}
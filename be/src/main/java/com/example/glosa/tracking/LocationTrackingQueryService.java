@@ -1,8 +1,18 @@
 package com.example.glosa.tracking;
 
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+
 import lombok.RequiredArgsConstructor;
 
 @Service
@@ -10,10 +20,90 @@ import lombok.RequiredArgsConstructor;
 public class LocationTrackingQueryService {
 
     private final TrackedTripRepository tripRepository;
+    private final TrackedLocationReader locationReader;
+    private final TrackArchive trackArchive;
+
+    @Transactional(readOnly = true)
+    public TrackedTrip getTrip(long tripId) {
+        return tripRepository.findById(tripId).orElseThrow();
+    }
+
+    /**
+     * @param from inclusive
+     * @param to   inclusive
+     * @return the trip's positions within the time range, ordered by
+     *         measurement-time
+     */
+    @Transactional(readOnly = true)
+    public List<TrackedPosition> getPositions(long tripId, Optional<OffsetDateTime> from,
+            Optional<OffsetDateTime> to) {
+        var positions = new ArrayList<TrackedPosition>();
+        forEachPosition(tripId, from, to, positions::add);
+        return positions;
+    }
+
+    /**
+     * passes the trip's positions to the consumer one by one (ordered by
+     * measurement-time) without loading all of them at once (except for the
+     * compacted track of an ended trip)
+     */
+    @Transactional(readOnly = true)
+    public void forEachPosition(long tripId, Consumer<TrackedPosition> consumer) {
+        forEachPosition(tripId, Optional.empty(), Optional.empty(), consumer);
+    }
+
+    /**
+     * the compacted track of an ended trip (archived and/or in the db), merged
+     * with its locations (only ones stored after the trip was ended, if any)
+     */
+    private void forEachPosition(long tripId, Optional<OffsetDateTime> from, Optional<OffsetDateTime> to,
+            Consumer<TrackedPosition> consumer) {
+
+        var compacted = compactedPositions(tripId).stream()
+                .filter(p -> from.map(f -> !p.getMeasurementTime().isBefore(f)).orElse(true))
+                .filter(p -> to.map(t -> !p.getMeasurementTime().isAfter(t)).orElse(true))
+                .toList();
+
+        var next = new int[1];
+        locationReader.forEachPosition(tripId, from, to, position -> {
+            while (next[0] < compacted.size()
+                    && !compacted.get(next[0]).getMeasurementTime().isAfter(position.getMeasurementTime()))
+                consumer.accept(compacted.get(next[0]++));
+            consumer.accept(position);
+        });
+        compacted.subList(next[0], compacted.size()).forEach(consumer);
+    }
+
+    private List<TrackedPosition> compactedPositions(long tripId) {
+        var positions = new ArrayList<TrackedPosition>();
+        tripRepository.findArchiveMonthById(tripId)
+                .map(month -> trackArchive.read(month, tripId).orElseThrow(
+                        () -> new IllegalStateException("trip " + tripId + " missing in archive " + month)))
+                .map(CompactTrack::decode).ifPresent(positions::addAll);
+        tripRepository.findCompactedTrackById(tripId) // not archived yet (or ended again since)
+                .map(CompactTrack::decode).ifPresent(positions::addAll);
+        positions.sort(Comparator.comparing(TrackedPosition::getMeasurementTime));
+        return positions;
+    }
+
+    /**
+     * @return all trips, latest first
+     */
+    @Transactional(readOnly = true)
+    public List<TrackedTripSummary> getTrips() {
+        return tripRepository.findLatestSummaries(Pageable.unpaged());
+    }
 
+    /**
+     * @param after cursor of the last trip of the previous page (empty: first
+     *              page)
+     * @return at most limit trips, latest first
+     */
     @Transactional(readOnly = true)
-    public TrackedTrip getTripWithLocations(long tripId) {
-        return tripRepository.findWithLocationsById(tripId).orElseThrow();
+    public List<TrackedTripSummary> getTrips(Optional<TrackedTripSummary.Cursor> after, int limit) {
+        var page = Pageable.ofSize(limit);
+        return after.map(c -> tripRepository.findSummariesBefore(c.tripStartTime(), c.id(), page))
+                .orElseGet(() -> tripRepository.findLatestSummaries(page));
     }
 
 }
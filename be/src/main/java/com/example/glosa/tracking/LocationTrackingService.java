@@ -1,26 +1,54 @@
 package com.example.glosa.tracking;
 
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.example.glosa.routing.PlannedRoute.PlannedRouteRepository;
 import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
 
-import jakarta.persistence.EntityManager;
-import jakarta.persistence.LockModeType;
 import jakarta.transaction.Transactional;
-import lombok.RequiredArgsConstructor;
 
 @Service
-@RequiredArgsConstructor
 public class LocationTrackingService {
 
+    private static final int DELETE_CHUNK_SIZE = 1000; // bind parameters per delete
+
     private final TrackedTripRepository tripRepository;
     private final PlannedRouteRepository routeRepository;
     private final TrackedLocationRepository locationRepository;
-    private final EntityManager em;
+    private final TrackedLocationBulkWriter locationBulkWriter;
+    private final TrackedLocationWriteBehind locationWriteBehind;
+    private final TrackedLocationReader locationReader;
+    private final TripSequencer tripSequencer;
+    private final TripWatermarks tripWatermarks;
+    private final TransactionTemplate transactions;
+
+    private final boolean bulkInsert;
+
+    public LocationTrackingService(TrackedTripRepository tripRepository, PlannedRouteRepository routeRepository,
+            TrackedLocationRepository locationRepository, TrackedLocationBulkWriter locationBulkWriter,
+            TrackedLocationWriteBehind locationWriteBehind, TrackedLocationReader locationReader,
+            TripSequencer tripSequencer, TripWatermarks tripWatermarks, PlatformTransactionManager transactionManager,
+            @Value("${tracking.ingest.bulk}") boolean bulkInsert) {
+        this.tripRepository = tripRepository;
+        this.routeRepository = routeRepository;
+        this.locationRepository = locationRepository;
+        this.locationBulkWriter = locationBulkWriter;
+        this.locationWriteBehind = locationWriteBehind;
+        this.locationReader = locationReader;
+        this.tripSequencer = tripSequencer;
+        this.tripWatermarks = tripWatermarks;
+        this.transactions = new TransactionTemplate(transactionManager);
+        this.bulkInsert = bulkInsert;
+    }
 
     @Transactional
     public long startNewTrip(OffsetDateTime startTime, String routeName) {
@@ -33,29 +61,72 @@ public class LocationTrackingService {
         return trip.getId();
     }
 
-    @Transactional
-    public TrackedTrip trackLocations(long tripId,
+    /**
+     * modifications of the same trip are serialized by the sequencer (the
+     * transaction is committed before the next one starts), already stored
+     * positions are skipped (idempotent retries)
+     */
+    public void trackLocations(long tripId,
             Collection<TrackedPosition> positions) {
+        tripSequencer.inOrder(tripId, () -> {
+            var newPositions = tripWatermarks.newPositions(tripId, positions);
+            if (!newPositions.isEmpty()) {
+                // queued: written later, without a connection or the caller waiting for the commit
+                if (!locationWriteBehind.offer(tripId, newPositions))
+                    transactions.executeWithoutResult(tx -> insertLocations(tripId, newPositions));
+                tripWatermarks.advance(tripId, newPositions); // committed (or queued)
+            }
+        });
+    }
 
-        // tbd: idempotency useful (filter already present measurement-times) ?
-
-        var trip = tripRepository.findById(tripId).orElseThrow();
-
-        var locations = positions.stream().map(p -> TrackedLocation.create(trip, p)).toList();
-        locations = locationRepository.saveAll(locations);
-        em.lock(trip, LockModeType.OPTIMISTIC_FORCE_INCREMENT); // prevent concurrent trip modification
+    private void insertLocations(long tripId, List<TrackedPosition> positions) {
 
-        return trip;
+        if (bulkInsert) { // plain jdbc batch, no entities (unknown trips violate the foreign key)
+            locationBulkWriter.insertAll(tripId, positions);
+        } else {
+            var trip = tripRepository.getReferenceById(tripId); // no select
+            var locations = positions.stream().map(p -> TrackedLocation.create(trip, p)).toList();
+            locationRepository.saveAll(locations);
+        }
     }
 
-    @Transactional
     public TrackedTrip endTrip(long tripId, OffsetDateTime endTime) {
+        return tripSequencer.inOrder(tripId, () -> transactions.execute(tx -> {
 
-        var trip = tripRepository.findById(tripId).orElseThrow();
+            var trip = tripRepository.findById(tripId).orElseThrow();
 
-        trip.setTripEndTime(endTime);
+            trip.setTripEndTime(endTime);
+            compact(trip);
+
+            return trip;
+        }));
+    }
 
-        return trip;
+    /**
+     * replaces the trip's locations by its compacted track (positions still
+     * queued by the write-behind are stored as locations afterwards, and
+     * compacted as well if the trip is ended again): only the locations read
+     * are deleted, locations committed by the write-behind in between are kept
+     */
+    private void compact(TrackedTrip trip) {
+
+        var positions = new ArrayList<TrackedPosition>();
+        if (trip.getCompactedTrack() != null)
+            positions.addAll(CompactTrack.decode(trip.getCompactedTrack()));
+        var compactedTimes = new ArrayList<OffsetDateTime>();
+        locationReader.forEachPosition(trip.getId(), position -> {
+            positions.add(position);
+            compactedTimes.add(position.getMeasurementTime());
+        });
+        if (positions.isEmpty())
+            return;
+        positions.sort(Comparator.comparing(TrackedPosition::getMeasurementTime));
+
+        trip.setCompactedTrack(CompactTrack.encode(positions));
+        for (int i = 0; i < compactedTimes.size(); i += DELETE_CHUNK_SIZE) {
+            var chunk = compactedTimes.subList(i, Math.min(i + DELETE_CHUNK_SIZE, compactedTimes.size()));
+            locationRepository.deleteByMeasurementTimes(trip.getId(), chunk);
+        }
     }
 
 }
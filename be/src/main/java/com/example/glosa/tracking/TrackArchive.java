@@ -0,0 +1,134 @@
+package com.example.glosa.tracking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Compacted tracks moved out of the db, partitioned by the month of the trip
+ * start: one compressed zip file per month on local disk, one entry per trip
+ * (named by trip id), so a single trip can be read without unpacking the
+ * month.
+ */
+@Component
+class TrackArchive {
+
+    private final Path directory;
+
+    TrackArchive(@Value("${tracking.archive.directory}") Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param month as stored in {@link TrackedTrip#getArchiveMonth()}
+     * @return the compacted track, empty if the trip is not in the month's
+     *         archive
+     */
+    Optional<byte[]> read(String month, long tripId) {
+        try (var zip = new ZipFile(file(YearMonth.parse(month)).toFile())) {
+            var entry = zip.getEntry(entryName(tripId));
+            if (entry == null)
+                return Optional.empty();
+            try (var in = zip.getInputStream(entry)) {
+                return Optional.of(in.readAllBytes());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Tracks are added to a new file, which replaces the month's file (keeping
+     * its other tracks) on {@link MonthWriter#commit()}. A writer closed
+     * without commit (e.g. because writing failed) leaves the existing file
+     * unchanged.
+     */
+    MonthWriter open(YearMonth month) throws IOException {
+        Files.createDirectories(directory);
+        return new MonthWriter(file(month));
+    }
+
+    class MonthWriter implements Closeable {
+
+        private final Path file;
+        private final Path tmp;
+        private final ZipOutputStream zip;
+        private final Set<String> written = new HashSet<>();
+        private boolean committed;
+
+        private MonthWriter(Path file) throws IOException {
+            this.file = file;
+            this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            this.zip = new ZipOutputStream(Files.newOutputStream(tmp));
+            zip.setLevel(Deflater.BEST_COMPRESSION);
+        }
+
+        void add(long tripId, byte[] compactedTrack) throws IOException {
+            var name = entryName(tripId);
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(compactedTrack);
+            zip.closeEntry();
+            written.add(name);
+        }
+
+        /**
+         * copies the other tracks of the existing file and replaces it
+         */
+        void commit() throws IOException {
+            if (Files.exists(file))
+                copyOthers();
+            zip.close();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (committed)
+                return;
+            try { // not committed: discarded
+                zip.close();
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private void copyOthers() throws IOException {
+            try (var existing = new ZipFile(file.toFile())) {
+                for (var entries = existing.entries(); entries.hasMoreElements();) {
+                    var entry = entries.nextElement();
+                    if (written.contains(entry.getName()))
+                        continue; // archived again
+                    zip.putNextEntry(new ZipEntry(entry.getName()));
+                    try (var in = existing.getInputStream(entry)) {
+                        in.transferTo(zip);
+                    }
+                    zip.closeEntry();
+                }
+            }
+        }
+    }
+
+    private Path file(YearMonth month) {
+        return directory.resolve("tracks-" + month + ".zip");
+    }
+
+    private static String entryName(long tripId) {
+        return Long.toString(tripId);
+    }
+
+}
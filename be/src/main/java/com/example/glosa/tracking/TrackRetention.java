@@ -0,0 +1,109 @@
+package com.example.glosa.tracking;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Moves the compacted tracks of trips started more than retention-months ago
+ * (whole months, by trip start in UTC) from the db to the
+ * {@link TrackArchive}. The trips themselves stay in the db, so listing and
+ * reading them works as before. Each month is written to its archive file
+ * before its tracks are removed from the db: an interrupted run is repeated
+ * by the next one.
+ */
+@Slf4j
+@Component
+class TrackRetention {
+
+    private static final int CHUNK_SIZE = 100; // trips loaded at once
+
+    private final TrackedTripRepository tripRepository;
+    private final TrackArchive trackArchive;
+    private final TransactionTemplate transactions;
+    private final int retentionMonths;
+
+    private final Counter archived;
+
+    TrackRetention(TrackedTripRepository tripRepository, TrackArchive trackArchive,
+            PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+            @Value("${tracking.archive.retention-months}") int retentionMonths) {
+        this.tripRepository = tripRepository;
+        this.trackArchive = trackArchive;
+        this.transactions = new TransactionTemplate(transactionManager);
+        this.retentionMonths = retentionMonths;
+        this.archived = Counter.builder("tracking.archive.trips")
+                .description("compacted tracks moved to the archive").register(meterRegistry);
+    }
+
+    @Scheduled(cron = "${tracking.archive.cron}")
+    void archiveOldTracks() {
+        archiveMonthsBefore(YearMonth.now(ZoneOffset.UTC).minusMonths(retentionMonths));
+    }
+
+    void archiveMonthsBefore(YearMonth end) {
+        var oldest = tripRepository.findOldestUnarchivedStartTime();
+        if (oldest.isEmpty())
+            return;
+        var first = YearMonth.from(oldest.get().withOffsetSameInstant(ZoneOffset.UTC));
+        for (var month = first; month.isBefore(end); month = month.plusMonths(1)) {
+            try {
+                archive(month);
+            } catch (IOException | RuntimeException e) { // retried by the next run
+                log.warn("could not archive the tracks of {}", month, e);
+                return;
+            }
+        }
+    }
+
+    private void archive(YearMonth month) throws IOException {
+
+        var tripIds = tripRepository.findIdsToArchive(start(month), start(month.plusMonths(1)));
+        if (tripIds.isEmpty())
+            return;
+
+        var updateCounters = new HashMap<Long, Integer>(); // of the archived tracks
+        try (var writer = trackArchive.open(month)) {
+            for (int i = 0; i < tripIds.size(); i += CHUNK_SIZE) {
+                for (var trip : tripRepository.findAllById(chunk(tripIds, i))) {
+                    writer.add(trip.getId(), trip.getCompactedTrack());
+                    updateCounters.put(trip.getId(), trip.getUpdateCounter());
+                }
+            }
+            writer.commit();
+        }
+        // trips modified in the meantime keep their (new) track in the db, archived again by the next run
+        int marked = transactions.execute(tx -> {
+            int count = 0;
+            for (var trip : updateCounters.entrySet()) {
+                count += tripRepository.markArchived(trip.getKey(), trip.getValue(), month.toString());
+            }
+            return count;
+        });
+
+        archived.increment(marked);
+        log.info("archived the tracks of {} trips of {}", marked, month);
+    }
+
+    private static OffsetDateTime start(YearMonth month) {
+        return month.atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC);
+    }
+
+    private static <T> List<T> chunk(List<T> list, int from) {
+        return list.subList(from, Math.min(from + CHUNK_SIZE, list.size()));
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.example.glosa.tracking;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Inserts tracked locations with plain JDBC batches (rewritten to multi-row
+ * inserts by the driver, see reWriteBatchedInserts), bypassing the entity
+ * manager. Joins the surrounding transaction. Positions whose measurement-time
+ * is already stored for the trip are skipped (unique_measurement_times_per_trip),
+ * e.g. a retry of queued positions which were not committed yet.
+ */
+@Repository
+@RequiredArgsConstructor
+class TrackedLocationBulkWriter {
+
+    private static final String INSERT = """
+            insert into tracked_location
+            (id, trip_id, insert_time, lat, lng, accuracy, alt, alt_accuracy, heading, speed, measurement_time)
+            values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            on conflict do nothing""";
+
+    // same sequence (and allocation size) as TrackedLocation, so ids never collide with the ones hibernate assigns
+    private static final String NEXT_IDS = "select nextval('tracked_location_id_sequence') from generate_series(1, ?)";
+    private static final int ALLOCATION_SIZE = 10;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    record TripPositions(long tripId, List<TrackedPosition> positions) {
+    }
+
+    void insertAll(long tripId, List<TrackedPosition> positions) {
+        insertAll(List.of(new TripPositions(tripId, positions)));
+    }
+
+    /**
+     * one batch for the positions of several trips
+     */
+    void insertAll(List<TripPositions> trips) {
+
+        long[] tripIds = trips.stream()
+                .flatMapToLong(t -> t.positions().stream().mapToLong(p -> t.tripId()))
+                .toArray();
+        var positions = trips.stream().flatMap(t -> t.positions().stream()).toList();
+        if (positions.isEmpty())
+            return;
+
+        var ids = nextIds(positions.size());
+        var insertTime = OffsetDateTime.now(); // as @CreationTimestamp, once per batch
+
+        jdbcTemplate.batchUpdate(INSERT, new BatchPreparedStatementSetter() {
+
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                var p = positions.get(i);
+                ps.setLong(1, ids[i]);
+                ps.setLong(2, tripIds[i]);
+                ps.setObject(3, insertTime, Types.TIMESTAMP_WITH_TIMEZONE);
+                ps.setObject(4, p.getLat(), Types.DOUBLE);
+                ps.setObject(5, p.getLng(), Types.DOUBLE);
+                ps.setObject(6, p.getAccuracy(), Types.DOUBLE);
+                ps.setObject(7, p.getAlt(), Types.DOUBLE);
+                ps.setObject(8, p.getAltAccuracy(), Types.DOUBLE);
+                ps.setObject(9, p.getHeading(), Types.DOUBLE);
+                ps.setObject(10, p.getSpeed(), Types.DOUBLE);
+                ps.setObject(11, p.getMeasurementTime(), Types.TIMESTAMP_WITH_TIMEZONE);
+            }
+
+            @Override
+            public int getBatchSize() {
+                return positions.size();
+            }
+        });
+    }
+
+    /**
+     * every sequence value v reserves the ids (v - allocationSize, v], like
+     * hibernate's pooled optimizer
+     */
+    private long[] nextIds(int n) {
+        var ids = new long[n];
+        int count = 0;
+        while (count < n) {
+            int blocks = (n - count + ALLOCATION_SIZE - 1) / ALLOCATION_SIZE;
+            for (long v : jdbcTemplate.queryForList(NEXT_IDS, Long.class, blocks)) {
+                for (long id = Math.max(1, v - ALLOCATION_SIZE + 1); id <= v && count < n; id++) {
+                    ids[count++] = id;
+                }
+            }
+        }
+        return ids;
+    }
+
+}
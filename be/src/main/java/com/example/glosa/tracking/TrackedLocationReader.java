@@ -0,0 +1,77 @@
+package com.example.glosa.tracking;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.OffsetDateTime;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Reads the positions of a trip with a forward-only cursor: rows are fetched
+ * in chunks of FETCH_SIZE and handed over one at a time, so memory usage does
+ * not depend on the length of the trip. Must be called within a transaction
+ * (postgres only uses a cursor without auto-commit).
+ */
+@Repository
+@RequiredArgsConstructor
+class TrackedLocationReader {
+
+    private static final String SELECT = """
+            select lat, lng, accuracy, alt, alt_accuracy, heading, speed, measurement_time
+            from tracked_location
+            where trip_id = ?""";
+    private static final String FROM = " and measurement_time >= ?";
+    private static final String TO = " and measurement_time <= ?";
+    private static final String ORDER = " order by measurement_time";
+
+    static final int FETCH_SIZE = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    void forEachPosition(long tripId, Consumer<TrackedPosition> consumer) {
+        forEachPosition(tripId, Optional.empty(), Optional.empty(), consumer);
+    }
+
+    /**
+     * @param from inclusive
+     * @param to   inclusive
+     */
+    void forEachPosition(long tripId, Optional<OffsetDateTime> from, Optional<OffsetDateTime> to,
+            Consumer<TrackedPosition> consumer) {
+        var sql = SELECT + (from.isPresent() ? FROM : "") + (to.isPresent() ? TO : "") + ORDER;
+        jdbcTemplate.query(connection -> {
+            var ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(FETCH_SIZE);
+            int i = 1;
+            ps.setLong(i++, tripId);
+            if (from.isPresent())
+                ps.setObject(i++, from.get(), Types.TIMESTAMP_WITH_TIMEZONE);
+            if (to.isPresent())
+                ps.setObject(i++, to.get(), Types.TIMESTAMP_WITH_TIMEZONE);
+            return ps;
+        }, rs -> {
+            consumer.accept(toPosition(rs));
+        });
+    }
+
+    private static TrackedPosition toPosition(ResultSet rs) throws SQLException {
+        return new TrackedPosition(
+                rs.getObject("lat", Double.class),
+                rs.getObject("lng", Double.class),
+                rs.getObject("accuracy", Double.class),
+                rs.getObject("alt", Double.class),
+                rs.getObject("alt_accuracy", Double.class),
+                rs.getObject("heading", Double.class),
+                rs.getObject("speed", Double.class),
+                rs.getObject("measurement_time", OffsetDateTime.class));
+    }
+
+}
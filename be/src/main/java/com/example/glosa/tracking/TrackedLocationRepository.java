@@ -1,9 +1,32 @@
 package com.example.glosa.tracking;
 
+import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public interface TrackedLocationRepository extends JpaRepository<TrackedLocation, Long> {
 
+    @Query("select max(l.position.measurementTime) from TrackedLocation l where l.trip.id = :tripId")
+    Optional<OffsetDateTime> findLastMeasurementTime(@Param("tripId") long tripId);
+
+    @Query("""
+            select l.position.measurementTime from TrackedLocation l
+            where l.trip.id = :tripId and l.position.measurementTime in :times""")
+    List<OffsetDateTime> findMeasurementTimes(@Param("tripId") long tripId,
+            @Param("times") Collection<OffsetDateTime> times);
+
+    @Modifying
+    @Query("""
+            delete from TrackedLocation l
+            where l.trip.id = :tripId and l.position.measurementTime in :times""")
+    int deleteByMeasurementTimes(@Param("tripId") long tripId, @Param("times") Collection<OffsetDateTime> times);
+
 }
@@ -0,0 +1,162 @@
+package com.example.glosa.tracking;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionOperations;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+import com.example.glosa.tracking.TrackedLocationBulkWriter.TripPositions;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Optional write-behind for tracked locations: positions are queued and
+ * acknowledged immediately, a background thread inserts everything queued
+ * (across trips) in one transaction. When the queue is full, callers wait
+ * (up to offer-timeout) and then write synchronously. On shutdown the queue is
+ * drained; positions still queued when the process dies are lost.
+ * <p>
+ * Queued positions are always inserted by the {@link TrackedLocationBulkWriter}
+ * (one jdbc batch for all trips of a commit), regardless of
+ * tracking.ingest.bulk.
+ */
+@Slf4j
+@Component
+class TrackedLocationWriteBehind {
+
+    private static final int MAX_GROUP_SIZE = 256; // queued requests per commit
+
+    private final TrackedLocationBulkWriter bulkWriter;
+    private final TransactionOperations transactions;
+    private final TripWatermarks tripWatermarks;
+
+    private final boolean enabled;
+    private final BlockingQueue<TripPositions> queue;
+    private final Duration offerTimeout;
+    private final Duration shutdownTimeout;
+
+    private final Timer commitLatency;
+    private final Counter failed;
+
+    private volatile boolean running;
+    private Thread writer;
+
+    @Autowired
+    TrackedLocationWriteBehind(TrackedLocationBulkWriter bulkWriter, PlatformTransactionManager transactionManager,
+            TripWatermarks tripWatermarks, MeterRegistry meterRegistry,
+            @Value("${tracking.write-behind.enabled}") boolean enabled,
+            @Value("${tracking.write-behind.capacity}") int capacity,
+            @Value("${tracking.write-behind.offer-timeout}") Duration offerTimeout,
+            @Value("${tracking.write-behind.shutdown-timeout}") Duration shutdownTimeout) {
+        this(bulkWriter, new TransactionTemplate(transactionManager), tripWatermarks, meterRegistry, enabled, capacity,
+                offerTimeout, shutdownTimeout);
+    }
+
+    TrackedLocationWriteBehind(TrackedLocationBulkWriter bulkWriter, TransactionOperations transactions,
+            TripWatermarks tripWatermarks, MeterRegistry meterRegistry, boolean enabled, int capacity,
+            Duration offerTimeout, Duration shutdownTimeout) {
+        this.bulkWriter = bulkWriter;
+        this.transactions = transactions;
+        this.tripWatermarks = tripWatermarks;
+        this.enabled = enabled;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.offerTimeout = offerTimeout;
+        this.shutdownTimeout = shutdownTimeout;
+        Gauge.builder("tracking.write-behind.queue.depth", queue, BlockingQueue::size).register(meterRegistry);
+        this.commitLatency = Timer.builder("tracking.write-behind.commit").register(meterRegistry);
+        this.failed = Counter.builder("tracking.write-behind.failed")
+                .description("queued requests which could not be written").register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        if (!enabled)
+            return;
+        running = true;
+        writer = new Thread(this::run, "location-write-behind");
+        writer.start();
+    }
+
+    /**
+     * @return false if the positions could not be queued (disabled, stopped or
+     *         still full after offer-timeout), the caller should write them
+     *         synchronously then
+     */
+    boolean offer(long tripId, List<TrackedPosition> positions) {
+        if (!running)
+            return false;
+        try {
+            return queue.offer(new TripPositions(tripId, positions), offerTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void run() {
+        var group = new ArrayList<TripPositions>(MAX_GROUP_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                var first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                group.add(first);
+                queue.drainTo(group, MAX_GROUP_SIZE - 1);
+                write(group);
+            } catch (InterruptedException e) {
+                running = false; // drain the rest
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void write(List<TripPositions> group) {
+        try {
+            commitLatency.record(() -> transactions.executeWithoutResult(tx -> bulkWriter.insertAll(group)));
+        } catch (RuntimeException e) { // e.g. a duplicate measurement-time: retry one by one, skip the failing ones
+            for (var trip : group) {
+                try {
+                    transactions.executeWithoutResult(tx -> bulkWriter.insertAll(List.of(trip)));
+                } catch (RuntimeException e2) {
+                    failed.increment();
+                    tripWatermarks.reset(trip.tripId()); // already advanced when queued, retries must not be skipped
+                    log.warn("dropping {} positions of trip {}: {}", trip.positions().size(), trip.tripId(),
+                            e2.getMessage());
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        if (writer == null)
+            return;
+        running = false; // new positions are written synchronously
+        writer.join(shutdownTimeout.toMillis());
+        if (writer.isAlive()) {
+            log.warn("shutdown timeout exceeded, {} queued requests are lost", queue.size());
+        } else if (!queue.isEmpty()) { // queued while the writer was finishing
+            var rest = new ArrayList<TripPositions>();
+            queue.drainTo(rest);
+            write(rest);
+        }
+    }
+
+}
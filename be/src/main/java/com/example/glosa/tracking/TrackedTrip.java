@@ -11,15 +11,20 @@ import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.ManyToOne;
 import jakarta.persistence.OneToMany;
 import jakarta.persistence.OrderBy;
+import jakarta.persistence.Table;
 import jakarta.persistence.Version;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 @Entity
+@Table(indexes = {
+        @Index(columnList = "tripStartTime, id", name = "trip_start_time_idx") // trip listing (latest first)
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -43,7 +48,21 @@ public class TrackedTrip {
     @OrderBy("position.measurementTime")
     private List<TrackedLocation> locations = new ArrayList<>();
 
+    /**
+     * positions of the ended trip (see {@link CompactTrack}), its locations
+     * are removed then (except for ones arriving late)
+     */
+    @Column(columnDefinition = "bytea")
+    private byte[] compactedTrack;
+
+    /**
+     * month (e.g. 2023-05) of the {@link TrackArchive} file the compacted
+     * track was moved to, null while it is in the db
+     */
+    @Column(length = 7)
+    private String archiveMonth;
+
     public static TrackedTrip create(OffsetDateTime startTime, PlannedRoute route) {
-        return new TrackedTrip(null, 0, startTime, null, route, null);
+        return new TrackedTrip(null, 0, startTime, null, route, null, null, null);
     }
 }
@@ -1,9 +1,15 @@
 package com.example.glosa.tracking;
 
+import java.time.OffsetDateTime;
+import java.util.List;
 import java.util.Optional;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
@@ -12,4 +18,68 @@ public interface TrackedTripRepository extends JpaRepository<TrackedTrip, Long>
     @EntityGraph(attributePaths = "locations")
     Optional<TrackedTrip> findWithLocationsById(long tripId);
 
+    /**
+     * empty while the trip is active
+     */
+    @Query("select t.compactedTrack from TrackedTrip t where t.id = :tripId")
+    Optional<byte[]> findCompactedTrackById(@Param("tripId") long tripId);
+
+    /**
+     * empty unless the compacted track was moved to the {@link TrackArchive}
+     */
+    @Query("select t.archiveMonth from TrackedTrip t where t.id = :tripId")
+    Optional<String> findArchiveMonthById(@Param("tripId") long tripId);
+
+    /**
+     * of the trips whose compacted track is still in the db
+     */
+    @Query("""
+            select min(t.tripStartTime) from TrackedTrip t
+            where t.compactedTrack is not null and t.archiveMonth is null""")
+    Optional<OffsetDateTime> findOldestUnarchivedStartTime();
+
+    /**
+     * ended trips started within [from, to) whose compacted track is still in
+     * the db
+     */
+    @Query("""
+            select t.id from TrackedTrip t
+            where t.compactedTrack is not null and t.archiveMonth is null
+            and t.tripStartTime >= :from and t.tripStartTime < :to""")
+    List<Long> findIdsToArchive(@Param("from") OffsetDateTime from, @Param("to") OffsetDateTime to);
+
+    /**
+     * @return 0 if the trip was modified since it was read with the given
+     *         update-counter (e.g. ended again, with a new compacted track)
+     */
+    @Modifying
+    @Query("""
+            update TrackedTrip t
+            set t.compactedTrack = null, t.archiveMonth = :month, t.updateCounter = t.updateCounter + 1
+            where t.id = :id and t.updateCounter = :updateCounter""")
+    int markArchived(@Param("id") long id, @Param("updateCounter") int updateCounter, @Param("month") String month);
+
+    @Query("select t.route.name from TrackedTrip t where t.id = :tripId")
+    Optional<String> findRouteNameById(@Param("tripId") long tripId);
+
+    /**
+     * latest first (served by trip_start_time_idx)
+     */
+    @Query("""
+            select new com.example.glosa.tracking.TrackedTripSummary(t.id, t.tripStartTime, r.name)
+            from TrackedTrip t left join t.route r
+            order by t.tripStartTime desc, t.id desc""")
+    List<TrackedTripSummary> findLatestSummaries(Pageable page);
+
+    /**
+     * continues {@link #findLatestSummaries} after the given trip
+     */
+    @Query("""
+            select new com.example.glosa.tracking.TrackedTripSummary(t.id, t.tripStartTime, r.name)
+            from TrackedTrip t left join t.route r
+            where (t.tripStartTime, t.id) < (:tripStartTime, :id)
+            order by t.tripStartTime desc, t.id desc""")
+    List<TrackedTripSummary> findSummariesBefore(@Param("tripStartTime") OffsetDateTime tripStartTime,
+            @Param("id") long id, Pageable page);
+
 }
@@ -0,0 +1,38 @@
+package com.example.glosa.tracking;
+
+import java.time.OffsetDateTime;
+import java.util.Base64;
+
+/**
+ * Trip listing projection (no locations, no route points).
+ */
+public record TrackedTripSummary(Long id, OffsetDateTime tripStartTime, String routeName) {
+
+    /**
+     * Keyset position after a trip in the listing order (latest first), so a
+     * page is an index range scan instead of an offset.
+     */
+    public record Cursor(OffsetDateTime tripStartTime, long id) {
+
+        public static Cursor after(TrackedTripSummary trip) {
+            return new Cursor(trip.tripStartTime(), trip.id());
+        }
+
+        /**
+         * @throws IllegalArgumentException if the value is not a cursor
+         */
+        public static Cursor decode(String value) {
+            try {
+                var parts = new String(Base64.getUrlDecoder().decode(value)).split(",");
+                return new Cursor(OffsetDateTime.parse(parts[0]), Long.parseLong(parts[1]));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("invalid cursor: " + value, e);
+            }
+        }
+
+        public String encode() {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString((tripStartTime + "," + id).getBytes());
+        }
+    }
+
+}
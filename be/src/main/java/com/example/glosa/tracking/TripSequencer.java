@@ -0,0 +1,54 @@
+package com.example.glosa.tracking;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Serializes modifications of the same trip in memory (fair striped locks
+ * keyed by trip id): overlapping uploads of one trip wait for each other in
+ * arrival order instead of failing with optimistic-lock exceptions, other
+ * trips are not blocked (except for the rare stripe collision). Only valid
+ * with a single backend instance.
+ */
+@Component
+class TripSequencer {
+
+    static final int STRIPES = 256; // power of 2
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    TripSequencer() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock(true);
+        }
+    }
+
+    /**
+     * runs the action (incl. its transaction) while no other action for the same
+     * trip is running
+     */
+    <T> T inOrder(long tripId, Supplier<T> action) {
+        var lock = locks[stripe(tripId)];
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void inOrder(long tripId, Runnable action) {
+        inOrder(tripId, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    static int stripe(long tripId) {
+        long h = tripId * 0x9E3779B97F4A7C15L; // spread consecutive ids
+        return (int) (h >>> 32) & (STRIPES - 1);
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.example.glosa.tracking;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.stereotype.Component;
+
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Last accepted measurement-time per trip (loaded from the db on a miss), so
+ * re-sent positions (e.g. client retries) are filtered before inserting
+ * instead of violating unique_measurement_times_per_trip (or duplicating
+ * positions of an ended trip's compacted track). Positions at or before the
+ * watermark (e.g. overlapping uploads, where a later one got the lock first)
+ * are checked against the stored measurement-times and only the missing ones
+ * are accepted. Must only be used within the trip's sequencer lock.
+ */
+@Component
+class TripWatermarks {
+
+    private static final Instant NONE = Instant.MIN;
+
+    private final TrackedLocationRepository locationRepository;
+    private final TrackedTripRepository tripRepository;
+
+    private final Cache<Long, Instant> watermarks = Caffeine.newBuilder()
+            .maximumSize(10_000) // active trips
+            .expireAfterAccess(Duration.ofHours(1))
+            .build();
+
+    private final Counter duplicates;
+    private final Counter outOfOrder;
+
+    TripWatermarks(TrackedLocationRepository locationRepository, TrackedTripRepository tripRepository,
+            MeterRegistry meterRegistry) {
+        this.locationRepository = locationRepository;
+        this.tripRepository = tripRepository;
+        this.duplicates = Counter.builder("tracking.positions.duplicates")
+                .description("uploaded positions which were already stored").register(meterRegistry);
+        this.outOfOrder = Counter.builder("tracking.positions.out-of-order")
+                .description("stored positions which were older than the trip's watermark").register(meterRegistry);
+    }
+
+    /**
+     * @return the positions which are not stored yet (without repeated
+     *         measurement-times), sorted by measurement-time
+     */
+    List<TrackedPosition> newPositions(long tripId, Collection<TrackedPosition> positions) {
+
+        var watermark = watermarks.get(tripId, this::load);
+        var sorted = positions.stream().sorted(Comparator.comparing(TrackedPosition::getMeasurementTime)).toList();
+
+        var result = new ArrayList<TrackedPosition>(sorted.size());
+        var older = new ArrayList<TrackedPosition>();
+        Instant previous = null;
+        for (var position : sorted) {
+            var time = position.getMeasurementTime().toInstant();
+            if (time.equals(previous))
+                continue; // repeated within the request
+            previous = time;
+            if (time.isAfter(watermark)) {
+                result.add(position);
+            } else {
+                older.add(position);
+            }
+        }
+
+        if (!older.isEmpty()) {
+            var stored = storedTimes(tripId, older);
+            var missing = older.stream().filter(p -> !stored.contains(p.getMeasurementTime().toInstant())).toList();
+            outOfOrder.increment(missing.size());
+            result.addAll(0, missing); // all older than the ones after the watermark
+        }
+        duplicates.increment(positions.size() - result.size());
+        return result;
+    }
+
+    /**
+     * to be called once the positions are stored (or queued)
+     */
+    void advance(long tripId, List<TrackedPosition> storedPositions) {
+        if (storedPositions.isEmpty())
+            return;
+        var last = storedPositions.get(storedPositions.size() - 1).getMeasurementTime().toInstant();
+        watermarks.asMap().merge(tripId, last, (a, b) -> a.isAfter(b) ? a : b);
+    }
+
+    /**
+     * e.g. when queued positions could not be written: the next request
+     * reloads the watermark from the db, so retries are stored
+     */
+    void reset(long tripId) {
+        watermarks.invalidate(tripId);
+    }
+
+    /**
+     * of the given positions, stored as locations or in the compacted track
+     */
+    private Set<Instant> storedTimes(long tripId, List<TrackedPosition> positions) {
+
+        var times = positions.stream().map(TrackedPosition::getMeasurementTime).toList();
+        var stored = new HashSet<Instant>();
+        locationRepository.findMeasurementTimes(tripId, times).forEach(t -> stored.add(t.toInstant()));
+
+        if (stored.size() < times.size()) { // an ended trip
+            tripRepository.findCompactedTrackById(tripId).map(CompactTrack::decode)
+                    .ifPresent(track -> track.forEach(p -> stored.add(p.getMeasurementTime().toInstant())));
+        }
+        return stored;
+    }
+
+    private Instant load(long tripId) {
+        return locationRepository.findLastMeasurementTime(tripId)
+                .or(() -> tripRepository.findCompactedTrackById(tripId).map(CompactTrack::lastMeasurementTime))
+                .map(t -> t.toInstant()).orElse(NONE);
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.example.glosa.trafficlightdata;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightRtDataDto;
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightSignalState;
+
+/**
+ * Local prediction for traffic-lights running a fixed-time program: when the
+ * observed red and green phases have (almost) constant durations, the next two
+ * changes are extrapolated from the latest observation. Same output as the
+ * remote forecast (tld_analysis/forecast.py): same cutoff, a change which
+ * already passed (but was not observed yet) is predicted 1s from now. Only
+ * when a state has no observed duration yet, the remote forecast is asked
+ * (which cannot predict it either).
+ */
+final class FixedCyclePredictor {
+
+    static final double MAX_VARIATION_COEFFICIENT = 0.5;
+
+    private FixedCyclePredictor() {
+    }
+
+    /**
+     * @return empty if the cycle is irregular or there is not enough data
+     */
+    static Optional<List<TrafficLightRtDataDto>> predict(List<TrafficLightRtDataDto> input, OffsetDateTime now) {
+
+        var observations = redAndGreen(input);
+
+        // duration of each phase = time until the next observation
+        var redStats = new PhaseStats();
+        var greenStats = new PhaseStats();
+        for (int i = 0; i < observations.size() - 1; i++) {
+            var observation = observations.get(i);
+            double durationS = seconds(observation.getPhenomenonTime(), observations.get(i + 1).getPhenomenonTime());
+            stats(observation.getResult(), redStats, greenStats).add(durationS);
+        }
+        if (!redStats.isStable() || !greenStats.isStable())
+            return Optional.empty();
+
+        var last = observations.get(observations.size() - 1);
+        var next = opposite(last.getResult());
+        var predicted = last.getPhenomenonTime().plus(toDuration(stats(last.getResult(), redStats, greenStats).mean()));
+        if (predicted.isBefore(now))
+            predicted = now.plusSeconds(1);
+        var predicted2 = predicted.plus(toDuration(stats(next, redStats, greenStats).mean()));
+
+        return Optional.of(List.of(
+                new TrafficLightRtDataDto(predicted, next),
+                new TrafficLightRtDataDto(predicted2, opposite(next))));
+    }
+
+    /**
+     * @return red/green observations sorted by time
+     */
+    private static List<TrafficLightRtDataDto> redAndGreen(List<TrafficLightRtDataDto> input) {
+        return input.stream()
+                .filter(o -> o.getResult() == TrafficLightSignalState.RED
+                        || o.getResult() == TrafficLightSignalState.GREEN)
+                .sorted(Comparator.comparing(TrafficLightRtDataDto::getPhenomenonTime))
+                .toList();
+    }
+
+    private static PhaseStats stats(TrafficLightSignalState state, PhaseStats redStats, PhaseStats greenStats) {
+        return state == TrafficLightSignalState.RED ? redStats : greenStats;
+    }
+
+    private static TrafficLightSignalState opposite(TrafficLightSignalState state) {
+        return state == TrafficLightSignalState.RED ? TrafficLightSignalState.GREEN : TrafficLightSignalState.RED;
+    }
+
+    private static double seconds(OffsetDateTime from, OffsetDateTime to) {
+        return Duration.between(from, to).toMillis() / 1000d;
+    }
+
+    private static Duration toDuration(double seconds) {
+        return Duration.ofMillis(Math.round(seconds * 1000));
+    }
+
+    private static class PhaseStats {
+        private int n;
+        private double sum;
+        private double sumSq;
+
+        void add(double durationS) {
+            n++;
+            sum += durationS;
+            sumSq += durationS * durationS;
+        }
+
+        double mean() {
+            return sum / n;
+        }
+
+        /**
+         * a single duration has no (sample) deviation: stable, as in pandas
+         */
+        boolean isStable() {
+            if (n == 0 || mean() <= 0)
+                return false;
+            if (n == 1)
+                return true;
+            double variance = Math.max(0, (sumSq - n * mean() * mean()) / (n - 1)); // sample variance, as pandas
+            return Math.sqrt(variance) / mean() <= MAX_VARIATION_COEFFICIENT;
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.example.glosa.trafficlightdata;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * In-memory cache for upstream responses: entries are valid for a short time
+ * (and optionally only until a newer version of their input is requested),
+ * concurrent misses for the same key share one in-flight (asynchronous) load,
+ * other keys are not blocked. Expired entries are evicted in the background,
+ * also of keys which are never requested again.
+ */
+class SingleFlightCache<K, V> {
+
+    private record Entry<V>(CompletableFuture<V> value, Object version, long loadStartNanos) {
+    }
+
+    /**
+     * entries expire max-age after their load completed (loading ones are kept)
+     */
+    private record ExpiryAfterLoad<K, V>(long maxAgeNanos) implements Expiry<K, Entry<V>> {
+
+        @Override
+        public long expireAfterCreate(K key, Entry<V> entry, long currentTime) {
+            return entry.value().isDone() ? maxAgeNanos : Long.MAX_VALUE;
+        }
+
+        @Override
+        public long expireAfterUpdate(K key, Entry<V> entry, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, entry, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(K key, Entry<V> entry, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    private final Cache<K, Entry<V>> cache;
+    private final ConcurrentMap<K, Entry<V>> entries;
+    private final Ticker ticker;
+    private final long maxAgeNanos;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter coalesced;
+
+    SingleFlightCache(String name, Duration maxAge, MeterRegistry meterRegistry) {
+        this(name, maxAge, meterRegistry, Ticker.systemTicker());
+    }
+
+    SingleFlightCache(String name, Duration maxAge, MeterRegistry meterRegistry, Ticker ticker) {
+        this.cache = Caffeine.newBuilder()
+                .expireAfter(new ExpiryAfterLoad<K, V>(maxAge.toNanos()))
+                .scheduler(Scheduler.systemScheduler())
+                .ticker(ticker)
+                .build();
+        this.entries = cache.asMap();
+        this.ticker = ticker;
+        this.maxAgeNanos = maxAge.toNanos();
+        this.hits = counter(meterRegistry, name, "hit");
+        this.misses = counter(meterRegistry, name, "miss");
+        this.coalesced = counter(meterRegistry, name, "coalesced");
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String name, String result) {
+        return Counter.builder("singleflight.cache.gets").tag("cache", name).tag("result", result)
+                .register(meterRegistry);
+    }
+
+    CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> loader) {
+        return get(key, (String) null, loader);
+    }
+
+    /**
+     * @param version entries loaded for an older version are replaced (e.g. when
+     *                the input of the load changed), null is older than any
+     *                version. Requests with an older version than the entry's
+     *                are served the entry (or loaded without caching once it
+     *                expired), so they never replace newer entries.
+     */
+    <T extends Comparable<? super T>> CompletableFuture<V> get(K key, T version,
+            Supplier<CompletableFuture<V>> loader) {
+        while (true) {
+            long now = ticker.read();
+            var entry = entries.get(key);
+            int order = entry == null ? 1 : compare(version, entry.version());
+
+            if (order <= 0 && !entry.value().isDone()) {
+                coalesced.increment();
+                return entry.value();
+            }
+            if (order <= 0 && now - entry.loadStartNanos() < maxAgeNanos) {
+                hits.increment();
+                return entry.value();
+            }
+            if (order < 0) {
+                misses.increment();
+                return load(loader);
+            }
+
+            var loading = new Entry<V>(new CompletableFuture<>(), version, now);
+            boolean won = entry == null
+                    ? entries.putIfAbsent(key, loading) == null
+                    : entries.replace(key, entry, loading);
+            if (!won)
+                continue; // another thread started loading in between
+
+            misses.increment();
+            load(loader).whenComplete((value, e) -> {
+                if (e != null) {
+                    entries.remove(key, loading); // do not cache failures
+                    loading.value().completeExceptionally(e);
+                } else {
+                    loading.value().complete(value);
+                    entries.replace(key, loading, loading); // expires maxAge after completion
+                }
+            });
+            return loading.value();
+        }
+    }
+
+    /**
+     * @return number of entries (after evicting the expired ones)
+     */
+    long size() {
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Comparable<? super T>> int compare(T version, Object entryVersion) {
+        return Comparator.nullsFirst(Comparator.<T>naturalOrder()).compare(version, (T) entryVersion);
+    }
+
+    private CompletableFuture<V> load(Supplier<CompletableFuture<V>> loader) {
+        try {
+            return loader.get();
+        } catch (Throwable e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+}
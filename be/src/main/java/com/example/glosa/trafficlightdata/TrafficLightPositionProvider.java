@@ -1,24 +1,22 @@
 package com.example.glosa.trafficlightdata;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
-import org.springframework.boot.web.client.RestTemplateBuilder;
-import org.springframework.context.annotation.Bean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
 
 import com.example.glosa.routing.PlannedRoutePoint;
 import com.example.glosa.trafficlightdata.TrafficLightData.TrafficLightDataRepository;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import jakarta.transaction.Transactional;
 import jakarta.transaction.Transactional.TxType;
 import lombok.AllArgsConstructor;
 import lombok.Data;
-import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 
 /**
@@ -27,16 +25,19 @@ import lombok.SneakyThrows;
  * API-proxy-service)
  */
 @Service
-@RequiredArgsConstructor
 public class TrafficLightPositionProvider {
 
-    private final RestTemplate restTemplate; // tbd: (async) webclient
+    private final WebClient webClient;
+
+    private final Duration timeout;
 
     private final TrafficLightDataRepository trafficLightDataRepository;
 
-    @Bean
-    public static RestTemplate restTemplate(RestTemplateBuilder builder) {
-        return builder.build();
+    public TrafficLightPositionProvider(WebClient webClient, TrafficLightDataRepository trafficLightDataRepository,
+            @Value("${tld.client.timeout}") Duration timeout) {
+        this.webClient = webClient;
+        this.trafficLightDataRepository = trafficLightDataRepository;
+        this.timeout = timeout;
     }
 
     @Transactional(value = TxType.REQUIRES_NEW) // commit to cache independent of caller tx
@@ -111,12 +112,11 @@ public class TrafficLightPositionProvider {
         return new LatLon(lat, lon);
     }
 
-    @SneakyThrows
+    // blocking: only used while creating routes (within a transaction)
     private JsonNode get(String thingRequest) {
-        var result = restTemplate.getForEntity(thingRequest, String.class);
-        if (!result.getStatusCode().is2xxSuccessful())
-            throw new IllegalStateException("" + result.getStatusCode());
-        JsonNode body = new ObjectMapper().readTree(result.getBody());
-        return Objects.requireNonNull(body.get("value"));
+        JsonNode body = webClient.get().uri(thingRequest).retrieve() // error status -> WebClientResponseException
+                .bodyToMono(JsonNode.class)
+                .block(timeout);
+        return Objects.requireNonNull(Objects.requireNonNull(body).get("value"));
     }
 }
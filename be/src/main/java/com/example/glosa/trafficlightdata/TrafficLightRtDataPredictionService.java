@@ -1,50 +1,108 @@
 package com.example.glosa.trafficlightdata;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
 
 import org.mapstruct.Mapper;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
 
 import com.example.glosa.calculation.SpeedRecommender;
 import com.example.glosa.calculation.SpeedRecommender.TrafficLightRtDataDto;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
-import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
+import reactor.core.publisher.Mono;
 
 @Service
-@RequiredArgsConstructor
 public class TrafficLightRtDataPredictionService {
 
-    private final RestTemplate restTemplate; // tbd: (async) webclient
+    private final WebClient webClient;
+
+    private final Duration timeout;
 
     private static final String BASE_URL = "http://localhost:5001";
 
     private final TrafficLightRtDataPredictionDtoMapper mapper;
 
+    private final SingleFlightCache<String, List<TrafficLightRtDataDto>> predictionCache;
+
+    private final Counter localPredictions;
+    private final Counter remotePredictions;
+    private final Timer remoteLatency;
+
+    public TrafficLightRtDataPredictionService(WebClient webClient, TrafficLightRtDataPredictionDtoMapper mapper,
+            MeterRegistry meterRegistry, @Value("${tld.predictions.max-age}") Duration maxAge,
+            @Value("${tld.client.timeout}") Duration timeout) {
+        this.webClient = webClient;
+        this.timeout = timeout;
+        this.mapper = mapper;
+        this.predictionCache = new SingleFlightCache<>("predictions", maxAge, meterRegistry);
+        // saved latency: local predictions x mean of tld.predictions.remote.latency (derived on the dashboard)
+        this.localPredictions = Counter.builder("tld.predictions").tag("source", "local")
+                .description("fixed-cycle predictions calculated without the remote service").register(meterRegistry);
+        this.remotePredictions = Counter.builder("tld.predictions").tag("source", "remote").register(meterRegistry);
+        this.remoteLatency = Timer.builder("tld.predictions.remote.latency").register(meterRegistry);
+    }
+
     public List<TrafficLightRtDataDto> getPrediction(String trafficLightId, List<TrafficLightRtDataDto> input) {
+        return getPredictionAsync(trafficLightId, input).join();
+    }
+
+    /**
+     * the prediction only changes with new observations, so it is cached per
+     * traffic-light until a newer observation is passed
+     */
+    public CompletableFuture<List<TrafficLightRtDataDto>> getPredictionAsync(String trafficLightId,
+            List<TrafficLightRtDataDto> input) {
 
-        var result = post(BASE_URL + "/tlp-prediction/" + trafficLightId, mapper.toDto(input));
+        var latestObservation = input.stream().map(TrafficLightRtDataDto::getPhenomenonTime)
+                .max(Comparator.naturalOrder()).orElse(null);
+
+        return predictionCache.get(trafficLightId, latestObservation, () -> predict(trafficLightId, input));
+    }
+
+    /**
+     * fixed-time programs are extrapolated locally, only irregular signals are
+     * passed to the remote forecast
+     */
+    private CompletableFuture<List<TrafficLightRtDataDto>> predict(String trafficLightId,
+            List<TrafficLightRtDataDto> input) {
+
+        var local = FixedCyclePredictor.predict(input, OffsetDateTime.now());
+        if (local.isPresent()) {
+            localPredictions.increment();
+            return CompletableFuture.completedFuture(local.get());
+        }
 
-        return mapper.fromDto(result);
+        remotePredictions.increment();
+        var sample = Timer.start();
+        return requestPrediction(trafficLightId, input)
+                .whenComplete((result, e) -> sample.stop(remoteLatency));
     }
 
-    @SneakyThrows
-    private List<TrafficLightRtDataPredictionDto> post(String url, List<TrafficLightRtDataPredictionDto> input) {
-        var result = restTemplate.postForEntity(url, input, String.class);
-        if (!result.getStatusCode().is2xxSuccessful())
-            throw new IllegalStateException("" + result.getStatusCode());
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.registerModule(new JavaTimeModule());
-        var resultBody = objectMapper.readValue(result.getBody(), TrafficLightRtDataPredictionDto[].class);
-        return Stream.of(resultBody).toList();
+    private CompletableFuture<List<TrafficLightRtDataDto>> requestPrediction(String trafficLightId,
+            List<TrafficLightRtDataDto> input) {
+
+        // uri template: one latency metric for all traffic-lights
+        return webClient.post().uri(BASE_URL + "/tlp-prediction/{trafficLightId}", trafficLightId)
+                .bodyValue(mapper.toDto(input))
+                .retrieve() // error status -> WebClientResponseException
+                .bodyToMono(TrafficLightRtDataPredictionDto[].class)
+                .timeout(timeout)
+                .map(resultBody -> mapper.fromDto(Arrays.asList(resultBody)))
+                // empty body: fail (not cached) instead of completing with null
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("empty prediction for " + trafficLightId)))
+                .toFuture();
     }
 
     @Data
@@ -1,57 +1,68 @@
 package com.example.glosa.trafficlightdata;
 
-import java.time.OffsetDateTime;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.CompletableFuture;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
 
 import com.example.glosa.calculation.SpeedRecommender.TrafficLightRtDataDto;
-import com.example.glosa.calculation.SpeedRecommender.TrafficLightSignalState;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.example.glosa.trafficlightdata.TrafficLightRtDataPredictionService.TrafficLightRtDataPredictionDto;
+import com.example.glosa.trafficlightdata.TrafficLightRtDataPredictionService.TrafficLightRtDataPredictionDtoMapper;
 
-import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
 
 @Service
-@RequiredArgsConstructor
 public class TrafficLightRtDataProvider {
 
-    private final RestTemplate restTemplate; // tbd: (async) webclient
+    private final WebClient webClient;
+
+    private final Duration timeout;
+
+    private final TrafficLightRtDataPredictionDtoMapper mapper;
+
+    private final SingleFlightCache<String, List<TrafficLightRtDataDto>> observationCache;
 
     private static final int N = 16;
 
     private static final String BASE_URL = "http://localhost:3000";
 
-    @SneakyThrows
-    public List<TrafficLightRtDataDto> getObservations(String datastreamId) {
-
-        String url = BASE_URL + "/tld/" + datastreamId + "?nvalues=" + N;
+    public TrafficLightRtDataProvider(WebClient webClient, TrafficLightRtDataPredictionDtoMapper mapper,
+            MeterRegistry meterRegistry, @Value("${tld.observations.max-age}") Duration maxAge,
+            @Value("${tld.client.timeout}") Duration timeout) {
+        this.webClient = webClient;
+        this.mapper = mapper;
+        this.timeout = timeout;
+        this.observationCache = new SingleFlightCache<>("observations", maxAge, meterRegistry);
+    }
 
-        var results = get(url).elements();
-        Iterable<JsonNode> iterable = () -> results;
-        Stream<JsonNode> elements = StreamSupport.stream(iterable.spliterator(), false);
-        return elements.map(this::toDto).toList();
+    public List<TrafficLightRtDataDto> getObservations(String datastreamId) {
+        return getObservationsAsync(datastreamId).join();
     }
 
-    // TODO: use TrafficLightRtDataPredictionDtoMapper
-    private TrafficLightRtDataDto toDto(JsonNode node) {
-        return new TrafficLightRtDataDto(
-                OffsetDateTime.parse(node.get("phenomenonTime").asText()),
-                TrafficLightSignalState.get(node.get("result").asInt(-1)));
+    /**
+     * latest observations, shared between all riders approaching the same
+     * traffic-light within max-age
+     */
+    public CompletableFuture<List<TrafficLightRtDataDto>> getObservationsAsync(String datastreamId) {
+        return observationCache.get(datastreamId, () -> requestObservations(datastreamId));
     }
 
-    @SneakyThrows
-    private JsonNode get(String thingRequest) {
-        var result = restTemplate.getForEntity(thingRequest, String.class);
-        if (!result.getStatusCode().is2xxSuccessful())
-            throw new IllegalStateException("" + result.getStatusCode());
-        JsonNode body = new ObjectMapper().readTree(result.getBody());
-        return Objects.requireNonNull(body);
+    private CompletableFuture<List<TrafficLightRtDataDto>> requestObservations(String datastreamId) {
+
+        // uri template: one latency metric for all datastreams
+        return webClient.get().uri(BASE_URL + "/tld/{datastreamId}?nvalues={n}", datastreamId, N)
+                .retrieve() // error status -> WebClientResponseException
+                .bodyToMono(TrafficLightRtDataPredictionDto[].class) // same format, extra fields are ignored
+                .timeout(timeout)
+                .map(body -> mapper.fromDto(Arrays.asList(body)))
+                // empty body: fail (not cached) instead of completing with null
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("empty response: " + datastreamId)))
+                .toFuture();
     }
 
 }
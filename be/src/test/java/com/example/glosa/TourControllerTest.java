@@ -0,0 +1,75 @@
+package com.example.glosa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.time.OffsetDateTime;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import com.example.glosa.tracking.LocationTrackingService;
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+import com.example.glosa.tracking.TrackedTripSummary.Cursor;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+class TourControllerTest {
+
+    private static final String AUTHORIZATION = "Basic " + Base64.getEncoder().encodeToString("user:pw".getBytes());
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private LocationTrackingService trackingService;
+
+    @Test
+    void test_trip_pages() throws Exception {
+
+        var cursor = new Cursor(OffsetDateTime.parse("2001-01-01T00:00:00Z"), 1).encode();
+        mvc.perform(authorized(get("/tour/page").param("cursor", cursor)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.trips").isArray());
+
+        mvc.perform(authorized(get("/tour/page").param("cursor", "not-a-cursor")))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void test_export_locations() throws Exception {
+
+        var start = OffsetDateTime.parse("2002-03-04T05:06:07Z");
+        var tripId = trackingService.startNewTrip(start, "route_3");
+        trackingService.trackLocations(tripId, List.of(
+                new TrackedPosition(1.0, 1.5, start.plusSeconds(1)),
+                new TrackedPosition(2.0, 2.5, start.plusSeconds(2))));
+
+        var result = mvc.perform(authorized(get("/tour/{tourId}/locations", tripId)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        var lines = mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString().split("\n");
+
+        assertThat(lines).hasSize(2);
+        assertThat(lines[0]).startsWith("{\"lat\":1.0,");
+        assertThat(lines[1]).startsWith("{\"lat\":2.0,"); // no separator but the newline
+    }
+
+    private static MockHttpServletRequestBuilder authorized(MockHttpServletRequestBuilder request) {
+        return request.header(HttpHeaders.AUTHORIZATION, AUTHORIZATION);
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.example.glosa.calculation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.glosa.calculation.SpeedRecommender.NextTrafficLightDto;
+import com.example.glosa.calculation.SpeedRecommender.RouteLoader;
+import com.example.glosa.calculation.SpeedRecommender.Recommendation;
+import com.example.glosa.calculation.SpeedRecommender.SnappedToDto;
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightRtDataDto;
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightSignalState;
+import com.example.glosa.calculation.TripSessions.Fix;
+import com.example.glosa.calculation.TripSessions.TripSession;
+import com.example.glosa.tracking.TrackedTripRepository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RecommendationStreamsTest {
+
+    private static final OffsetDateTime T0 = OffsetDateTime.parse("2023-05-01T12:00:00Z");
+
+    private final SpeedRecommender speedRecommender = mock(SpeedRecommender.class);
+    private final TripSessions tripSessions = new TripSessions(mock(RouteLoader.class),
+            mock(TrackedTripRepository.class), Duration.ofMinutes(1));
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Queue<Runnable> pushTasks = new ArrayDeque<>();
+    private final RecommendationStreams streams = new RecommendationStreams(speedRecommender, tripSessions,
+            Duration.ofMinutes(1), pushTasks::add, meterRegistry);
+
+    @Test
+    void test_only_changed_recommendations_are_pushed() {
+
+        tripSessions.start(1, "route_1");
+        streams.subscribe(1);
+        assertThat(meterRegistry.get("recommendation.streams").gauge().value()).isEqualTo(1);
+
+        publish(recommendation(0.1, 5.0, List.of()));
+        publish(recommendation(0.1, 5.1, List.of())); // only the necessary speed changed
+        assertThat(pushes()).isEqualTo(1);
+
+        publish(recommendation(0.2, 5.1, List.of())); // moved
+        publish(recommendation(0.2, 5.1, List.of(
+                new TrafficLightRtDataDto(T0, TrafficLightSignalState.GREEN)))); // new observation
+        assertThat(pushes()).isEqualTo(3);
+    }
+
+    @Test
+    void test_ended_trips_are_not_pushed() {
+
+        tripSessions.start(1, "route_1");
+        streams.subscribe(1);
+        streams.end(1);
+
+        publish(recommendation(0.1, 5.0, List.of()));
+        assertThat(pushes()).isZero();
+        assertThat(meterRegistry.get("recommendation.streams").gauge().value()).isZero();
+    }
+
+    @Test
+    void test_pushes_are_sent_by_the_push_executor() {
+
+        tripSessions.start(1, "route_1");
+        streams.subscribe(1);
+
+        var fix = new Fix(T0, 0.1, 0, null, null);
+        var recommendation = new CompletableFuture<NextTrafficLightDto>();
+        when(speedRecommender.calculateSpeedRecommendation(any(TripSession.class), any(Fix.class)))
+                .thenReturn(recommendation);
+        streams.publish(1, tripSessions.get(1), fix);
+        recommendation.complete(recommendation(0.1, 5.0, List.of())); // e.g. on the http client's event loop
+        assertThat(pushTasks).hasSize(1);
+        assertThat(pushes()).isZero();
+
+        runPushTasks();
+        assertThat(pushes()).isEqualTo(1);
+    }
+
+    @Test
+    void test_streams_without_session_are_completed_on_refresh() {
+
+        tripSessions.start(1, "route_1");
+        streams.subscribe(1);
+        tripSessions.end(1); // e.g. evicted when idle
+
+        streams.refresh();
+        assertThat(tripSessions.getIfPresent(1)).isEmpty(); // not re-created
+        assertThat(meterRegistry.get("recommendation.streams").gauge().value()).isZero();
+    }
+
+    private void publish(NextTrafficLightDto recommendation) {
+        var fix = new Fix(T0, recommendation.getSnappedTo().getLat(), 0, null, null);
+        when(speedRecommender.calculateSpeedRecommendation(any(TripSession.class), any(Fix.class)))
+                .thenReturn(CompletableFuture.completedFuture(recommendation));
+        streams.publish(1, tripSessions.get(1), fix);
+        runPushTasks();
+    }
+
+    private void runPushTasks() {
+        for (Runnable task; (task = pushTasks.poll()) != null;)
+            task.run();
+    }
+
+    private double pushes() {
+        return meterRegistry.get("recommendation.stream.pushes").counter().count();
+    }
+
+    private static NextTrafficLightDto recommendation(double lat, double necessarySpeed,
+            List<TrafficLightRtDataDto> data) {
+        return new NextTrafficLightDto("t1", 100.0, new SnappedToDto(lat, 0, 0), data, necessarySpeed,
+                Recommendation.KEEP, null, null, null);
+    }
+
+}
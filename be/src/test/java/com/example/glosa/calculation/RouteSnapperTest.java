@@ -1,29 +1,43 @@
 package com.example.glosa.calculation;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.time.Duration;
+import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
 import com.example.glosa.calculation.SpeedRecommender.RouteLoader;
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightRtDataDto;
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightSignalState;
+import com.example.glosa.calculation.TripSessions.Fix;
 import com.example.glosa.routing.PlannedRoute;
 import com.example.glosa.routing.PlannedRoute.PlannedRouteRepository;
 import com.example.glosa.routing.PlannedRoutePoint;
+import com.example.glosa.tracking.TrackedTripRepository;
 import com.example.glosa.trafficlightdata.TrafficLightRtDataPredictionService;
 import com.example.glosa.trafficlightdata.TrafficLightRtDataProvider;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 class RouteSnapperTest {
 
         private PlannedRouteRepository repo = mock(PlannedRouteRepository.class);
         private RouteLoader routeDataCache = new RouteLoader(repo);
         private TrafficLightRtDataProvider tldp = mock(TrafficLightRtDataProvider.class);
         private TrafficLightRtDataPredictionService predictionService = mock(TrafficLightRtDataPredictionService.class);
+        private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
         private SpeedRecommender routeSnapper = new SpeedRecommender(routeDataCache, new RouteSnapper(), tldp,
-                        predictionService);
+                        predictionService, meterRegistry);
 
         @CsvSource({
                         "0, t1, 3",
@@ -37,7 +51,7 @@ class RouteSnapperTest {
         @ParameterizedTest
         void test_next_trafficLight(double lat, String tl, double tlDistLat) {
 
-                // double distPerDegreeLat = 111_000;
+                double distPerDegreeLat = 111_000;
 
                 String routeName = "routeName";
                 PlannedRoute route = new PlannedRoute();
@@ -50,12 +64,100 @@ class RouteSnapperTest {
                                 new PlannedRoutePoint(10, 0),
                                 new PlannedRoutePoint(15, 0, "t2", "tlds_2")));
                 when(repo.findByName(routeName)).thenReturn(Optional.of(route));
+                when(tldp.getObservationsAsync(any())).thenReturn(CompletableFuture.completedFuture(List.of()));
+                when(predictionService.getPredictionAsync(any(), any()))
+                                .thenReturn(CompletableFuture.completedFuture(List.of()));
                 routeSnapper.NOTIFICATION_DISTANCE_M = Double.MAX_VALUE;
 
-                // var result = routeSnapper.distanceToNextTrafficLight(routeName, lat, 0, 0);
-                // assertThat(result.getDistanceM()).isCloseTo(tlDistLat * distPerDegreeLat,
-                // withinPercentage(1));
-                // assertThat(result.getTrafficLightId()).isEqualTo(tl);
+                var result = routeSnapper.calculateSpeedRecommendation(routeName, lat, 0, 0, Optional.empty()).join();
+                assertThat(result.getDistanceM()).isCloseTo(tlDistLat * distPerDegreeLat,
+                                withinPercentage(1));
+                assertThat(result.getTrafficLightId()).isEqualTo(tl);
+        }
+
+        @Test
+        void test_dead_reckoning() {
+
+                String routeName = "routeName";
+                PlannedRoute route = new PlannedRoute();
+                route.setName(routeName);
+                route.setPoints(List.of(
+                                new PlannedRoutePoint(0, 0),
+                                new PlannedRoutePoint(0.001, 0),
+                                new PlannedRoutePoint(0.002, 0),
+                                new PlannedRoutePoint(0.003, 0),
+                                new PlannedRoutePoint(0.004, 0)));
+                when(repo.findByName(routeName)).thenReturn(Optional.of(route));
+                var sessions = new TripSessions(routeDataCache, mock(TrackedTripRepository.class),
+                                Duration.ofMinutes(1));
+                sessions.start(1, routeName);
+                var session = sessions.get(1);
+                var t0 = OffsetDateTime.now();
+
+                // ~5m/s, points ~111m apart
+                routeSnapper.calculateSpeedRecommendation(session, new Fix(t0, 0.0005, 0, 5.0, null)).join();
+                var result = routeSnapper.calculateSpeedRecommendation(session,
+                                new Fix(t0.plusSeconds(20), 0.0014, 0, 5.0, null)).join();
+                routeSnapper.calculateSpeedRecommendation(session, new Fix(t0.plusSeconds(25), 0.0035, 0, 5.0, null))
+                                .join(); // faster than reported
+
+                assertThat(result.getSnappedTo().getReachedIdx()).isEqualTo(1);
+                assertThat(session.getReachedIdx()).isEqualTo(3);
+                assertThat(snapCount("unavailable")).isEqualTo(1); // first fix
+                assertThat(snapCount("hit")).isEqualTo(1);
+                assertThat(snapCount("miss")).isEqualTo(1);
+        }
+
+        @Test
+        void test_polls_are_coalesced_until_advised() {
+
+                String routeName = "routeName";
+                PlannedRoute route = new PlannedRoute();
+                route.setName(routeName);
+                route.setPoints(List.of(
+                                new PlannedRoutePoint(0, 0),
+                                new PlannedRoutePoint(0.001, 0),
+                                new PlannedRoutePoint(0.002, 0, "t1", "tlds_1")));
+                when(repo.findByName(routeName)).thenReturn(Optional.of(route));
+                when(tldp.getObservationsAsync(any())).thenReturn(CompletableFuture.completedFuture(List.of()));
+                var green = new TrafficLightRtDataDto(OffsetDateTime.now().plusSeconds(20),
+                                TrafficLightSignalState.GREEN);
+                when(predictionService.getPredictionAsync(any(), any()))
+                                .thenReturn(CompletableFuture.completedFuture(List.of(green)));
+                var sessions = new TripSessions(routeDataCache, mock(TrackedTripRepository.class),
+                                Duration.ofMinutes(1));
+                sessions.start(1, routeName);
+                var session = sessions.get(1);
+                var t0 = OffsetDateTime.now();
+
+                // ~167m to go at 5m/s, green in 20s -> half of that
+                var first = routeSnapper.pollSpeedRecommendation(session, new Fix(t0, 0.0005, 0, 5.0, null),
+                                Optional.empty()).join();
+                assertThat(first.getNextPollAfterMs()).isBetween(9_000L, 10_000L);
+                assertThat(first.getData()).containsExactly(green);
+
+                var early = routeSnapper.pollSpeedRecommendation(session,
+                                new Fix(t0.plusSeconds(1), 0.0006, 0, 5.0, null), Optional.of(first.getDataVersion()))
+                                .join();
+                assertThat(early.getSnappedTo()).isEqualTo(first.getSnappedTo());
+                assertThat(early.getData()).isNull();
+                assertThat(early.getDataDelta().getChanged()).isEmpty();
+                assertThat(early.getNextPollAfterMs()).isLessThanOrEqualTo(7_500L);
+
+                // the client does not hold the data
+                routeSnapper.pollSpeedRecommendation(session, new Fix(t0.plusSeconds(2), 0.0007, 0, 5.0, null),
+                                Optional.empty()).join();
+
+                assertThat(pollCount("calculated")).isEqualTo(2);
+                assertThat(pollCount("coalesced")).isEqualTo(1);
+        }
+
+        private double pollCount(String result) {
+                return meterRegistry.get("recommendation.polls").tag("result", result).counter().count();
+        }
+
+        private double snapCount(String result) {
+                return meterRegistry.get("snapping.predicted").tag("result", result).counter().count();
         }
 
 }
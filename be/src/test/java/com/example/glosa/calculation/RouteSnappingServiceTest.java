@@ -8,12 +8,19 @@ import static org.assertj.core.api.Assertions.withinPercentage;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.operation.distance.DistanceOp;
 
 import com.example.glosa.calculation.RouteSnapper.Point;
+import com.example.glosa.calculation.RouteSnapper.ReachedWaypointResult;
 import com.example.glosa.calculation.RouteSnapper.RouteSnappingParameter;
 
 class RouteSnappingServiceTest {
@@ -176,4 +183,170 @@ class RouteSnappingServiceTest {
 
                 assertThat(service.getLengthMercatorM(route)).isEqualTo(3);
         }
+
+        @Test
+        void test_segment_distance_matches_jts() {
+
+                var random = new Random(42);
+                var factory = new GeometryFactory();
+                for (int n = 0; n < 1000; n++) {
+                        var start = ofMercator(random.nextGaussian() * 100, random.nextGaussian() * 100);
+                        var end = ofMercator(random.nextGaussian() * 100, random.nextGaussian() * 100);
+                        var location = ofMercator(random.nextGaussian() * 100, random.nextGaussian() * 100);
+
+                        var dop = new DistanceOp(
+                                        factory.createLineString(new Coordinate[] {
+                                                        new Coordinate(start.getX(), start.getY()),
+                                                        new Coordinate(end.getX(), end.getY()) }),
+                                        factory.createPoint(new Coordinate(location.getX(), location.getY())));
+
+                        var geometry = RouteGeometry.ofPoints(List.of(start, end));
+                        var distance = Math.sqrt(RouteSnapper.distanceToSegmentSq(geometry, 0, location.getX(),
+                                        location.getY()));
+                        assertThat(distance).isCloseTo(dop.distance(), within(1e-9));
+
+                        var nearest = service.calcReachedWaypointIdx(geometry, location, 0).getNearestPointOnSegment();
+                        assertThat(nearest.getX()).isCloseTo(dop.nearestPoints()[0].x, within(1e-9));
+                        assertThat(nearest.getY()).isCloseTo(dop.nearestPoints()[0].y, within(1e-9));
+                }
+        }
+
+        @Test
+        void test_inserted_point() {
+
+                var geometry = RouteGeometry.ofPoints(List.of(ofMercator(0, 0), ofMercator(2, 0)))
+                                .withInsertedPoint(1, ofMercator(1, 1));
+
+                assertThat(geometry.size()).isEqualTo(3);
+                assertThat(geometry.x(1)).isEqualTo(1);
+                assertThat(geometry.y(1)).isEqualTo(1);
+                assertThat(geometry.segmentLengthM(0)).isCloseTo(Math.sqrt(2), within(.01));
+                assertThat(service.calcReachedWaypointIdx(geometry, ofMercator(1.9, 0.2), 0).getReachedWaypointIdx())
+                                .isEqualTo(1);
+        }
+
+        @Test
+        void test_predicted_snapping() {
+
+                var route = RouteGeometry.ofPoints(IntStream.range(0, 5)
+                                .mapToObj(i -> ofMercator(i * 100, 0)).collect(Collectors.toList()));
+
+                assertThat(route.segmentAt(-5)).isZero();
+                assertThat(route.segmentAt(150)).isEqualTo(1);
+                assertThat(route.segmentAt(route.distanceFromStartM(2))).isEqualTo(2);
+                assertThat(route.segmentAt(1000)).isEqualTo(3);
+
+                // predicted segment or the next one
+                assertThat(service.snapPredicted(route, ofMercator(150, 5), 1)).get()
+                                .extracting(ReachedWaypointResult::getReachedWaypointIdx).isEqualTo(1);
+                assertThat(service.snapPredicted(route, ofMercator(250, 5), 1)).get()
+                                .extracting(ReachedWaypointResult::getReachedWaypointIdx).isEqualTo(2);
+                assertThat(service.snapPredicted(route, ofMercator(350, 5), 1)).isEmpty();
+                assertThat(service.snapPredicted(route, ofMercator(150, 30), 1)).isEmpty();
+        }
+
+        @Test
+        void test_indexed_snapping_matches_sequential_search() {
+
+                var random = new Random(7);
+                var points = new ArrayList<Point>();
+                double x = 1_100_000;
+                double y = 7_100_000;
+                double direction = 0;
+                for (int i = 0; i < 2000; i++) { // winding route, crossing itself
+                        points.add(ofMercator(x, y));
+                        direction += random.nextGaussian() * 0.5;
+                        double step = 5 + random.nextDouble() * 40;
+                        x += Math.cos(direction) * step;
+                        y += Math.sin(direction) * step;
+                }
+                var route = RouteGeometry.ofPoints(points);
+                var indexed = route.indexed();
+
+                for (int n = 0; n < 2000; n++) {
+                        var onRoute = points.get(random.nextInt(points.size()));
+                        double offset = n % 10 == 0 ? 2000 : 60;
+                        var location = ofMercator(onRoute.getX() + random.nextGaussian() * offset,
+                                        onRoute.getY() + random.nextGaussian() * offset);
+                        int from = random.nextInt(points.size() - 1);
+
+                        var expected = service.calcReachedWaypointIdx(route, location, from);
+                        var actual = service.calcReachedWaypointIdx(indexed, location, from);
+                        assertThat(actual.getReachedWaypointIdx()).isEqualTo(expected.getReachedWaypointIdx());
+
+                        double heading = random.nextDouble() * 360;
+                        var expectedWithHeading = service.calcReachedWaypointIdx(route, location, from, heading);
+                        var actualWithHeading = service.calcReachedWaypointIdx(indexed, location, from, heading);
+                        assertThat(actualWithHeading.getReachedWaypointIdx())
+                                        .isEqualTo(expectedWithHeading.getReachedWaypointIdx());
+
+                        var nearest = service.calcReachedWaypointIdx(route, location, 0);
+                        var reacquired = service.reacquire(indexed, location);
+                        assertThat(reacquired.getDistance()).isLessThanOrEqualTo(nearest.getDistance());
+                }
+        }
+
+        @Test
+        void test_long_diagonal_segments_only_occupy_crossed_cells() {
+
+                var random = new Random(11);
+                var points = new ArrayList<Point>();
+                double x = 1_100_000;
+                double y = 7_100_000;
+                for (int i = 0; i < 20; i++) { // km-long straight stretches in all directions
+                        points.add(ofMercator(x, y));
+                        double direction = random.nextDouble() * 2 * Math.PI;
+                        double length = 1000 + random.nextDouble() * 4000;
+                        x += Math.cos(direction) * length;
+                        y += Math.sin(direction) * length;
+                }
+                points.add(ofMercator(1_100_000 + 0.5, 7_100_000 + 0.5)); // back, through cell corners
+                var route = RouteGeometry.ofPoints(points);
+                var indexed = route.indexed();
+
+                double cellsAlongRoute = 0;
+                for (int i = 0; i < route.segmentCount(); i++) {
+                        cellsAlongRoute += (Math.abs(route.x(i + 1) - route.x(i))
+                                        + Math.abs(route.y(i + 1) - route.y(i))) / SegmentGrid.CELL_SIZE + 2;
+                }
+                assertThat(indexed.getIndex().entryCount()).isLessThanOrEqualTo((int) cellsAlongRoute);
+
+                for (int n = 0; n < 2000; n++) {
+                        int i = random.nextInt(route.segmentCount());
+                        double t = random.nextDouble();
+                        var location = ofMercator(
+                                        route.x(i) + t * (route.x(i + 1) - route.x(i)) + random.nextGaussian() * 60,
+                                        route.y(i) + t * (route.y(i + 1) - route.y(i)) + random.nextGaussian() * 60);
+                        int from = random.nextInt(route.segmentCount());
+                        assertThat(service.calcReachedWaypointIdx(indexed, location, from).getReachedWaypointIdx())
+                                        .isEqualTo(service.calcReachedWaypointIdx(route, location, from)
+                                                        .getReachedWaypointIdx());
+                }
+        }
+
+        @Test
+        void test_heading_selects_direction_of_out_and_back_route() {
+
+                // north 1000m, then back south 10m further east
+                var points = new ArrayList<Point>();
+                for (int i = 0; i <= 10; i++)
+                        points.add(ofMercator(1_100_000, 7_100_000 + i * 100));
+                for (int i = 10; i >= 0; i--)
+                        points.add(ofMercator(1_100_010, 7_100_000 + i * 100));
+                var route = RouteGeometry.ofPoints(points);
+
+                var onWayBack = ofMercator(1_100_004, 7_100_250); // slightly closer to the way there
+                assertThat(service.calcReachedWaypointIdx(route, onWayBack, 0).getReachedWaypointIdx()).isEqualTo(2);
+                assertThat(service.calcReachedWaypointIdx(route, onWayBack, 0, 180).getReachedWaypointIdx())
+                                .isEqualTo(18);
+                assertThat(service.calcReachedWaypointIdx(route.indexed(), onWayBack, 0, 180).getReachedWaypointIdx())
+                                .isEqualTo(18);
+                assertThat(service.reacquire(route.indexed(), onWayBack, 175).getReachedWaypointIdx()).isEqualTo(18);
+                assertThat(service.calcReachedWaypointIdx(route, onWayBack, 0, 10).getReachedWaypointIdx())
+                                .isEqualTo(2);
+
+                // no segment matches: heading is ignored
+                assertThat(service.calcReachedWaypointIdx(route, onWayBack, 0, 270).getReachedWaypointIdx())
+                                .isEqualTo(2);
+        }
 }
@@ -0,0 +1,116 @@
+package com.example.glosa.calculation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightRtDataDto;
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightSignalState;
+
+class SignalTimelineTest {
+
+    @Test
+    void test_next_green_or_red() {
+
+        var timeline = new SignalTimeline();
+        timeline.update(
+                List.of(dto(3_000, TrafficLightSignalState.AMBER), dto(1_000, TrafficLightSignalState.GREEN)),
+                List.of(dto(8_000, TrafficLightSignalState.RED), dto(5_000, TrafficLightSignalState.RED_AMBER)));
+
+        assertThat(timeline.nextGreenOrRed(0).epochMillis()).isEqualTo(1_000);
+        assertThat(timeline.nextGreenOrRed(1_000).state()).isEqualTo(TrafficLightSignalState.GREEN);
+        assertThat(timeline.nextGreenOrRed(1_001).epochMillis()).isEqualTo(8_000); // predicted
+        assertThat(timeline.nextGreenOrRed(1_001).state()).isEqualTo(TrafficLightSignalState.RED);
+        assertThat(timeline.nextGreenOrRed(8_001)).isNull();
+
+        // latest first, as sent to the client
+        assertThat(timeline.getData()).extracting(d -> d.getPhenomenonTime().toInstant().toEpochMilli())
+                .containsExactly(8_000L, 5_000L, 3_000L, 1_000L);
+    }
+
+    @Test
+    void test_observations_are_sorted_and_deduplicated() {
+
+        var timeline = new SignalTimeline();
+        timeline.update(List.of(dto(2_000, TrafficLightSignalState.RED), dto(4_000, TrafficLightSignalState.GREEN)),
+                List.of());
+        timeline.update(List.of(dto(4_000, TrafficLightSignalState.GREEN), dto(3_000, TrafficLightSignalState.GREEN)),
+                List.of());
+
+        assertThat(timeline.observationCount()).isEqualTo(3);
+        assertThat(timeline.nextGreenOrRed(2_001).epochMillis()).isEqualTo(3_000);
+    }
+
+    @Test
+    void test_oldest_observations_are_dropped() {
+
+        var timeline = new SignalTimeline();
+        int n = SignalTimeline.CAPACITY + 10;
+        IntStream.range(0, n).forEach(i -> timeline
+                .update(List.of(dto(i * 1_000L, TrafficLightSignalState.GREEN)), List.of()));
+
+        assertThat(timeline.observationCount()).isEqualTo(SignalTimeline.CAPACITY);
+        assertThat(timeline.nextGreenOrRed(0).epochMillis()).isEqualTo(10_000);
+        assertThat(timeline.nextGreenOrRed((n - 1) * 1_000L).epochMillis()).isEqualTo((n - 1) * 1_000L);
+
+        timeline.update(List.of(dto(0, TrafficLightSignalState.RED)), List.of()); // too old
+        assertThat(timeline.nextGreenOrRed(0).epochMillis()).isEqualTo(10_000);
+    }
+
+    @Test
+    void test_changes_since_known_version() {
+
+        var timeline = new SignalTimeline();
+        var observations = List.of(dto(1_000, TrafficLightSignalState.GREEN), dto(2_000, TrafficLightSignalState.RED));
+        timeline.update(observations, List.of(dto(9_000, TrafficLightSignalState.GREEN)));
+        var v1 = timeline.getSnapshot();
+
+        timeline.update(observations, List.of(dto(9_000, TrafficLightSignalState.GREEN))); // equal prediction
+        assertThat(timeline.getSnapshot().version()).isEqualTo(v1.version());
+        assertThat(timeline.changes(v1.version(), timeline.getSnapshot()).orElseThrow().getChanged()).isEmpty();
+
+        timeline.update(List.of(dto(2_000, TrafficLightSignalState.RED), dto(3_000, TrafficLightSignalState.AMBER)),
+                List.of(dto(9_000, TrafficLightSignalState.RED)));
+        var v2 = timeline.getSnapshot();
+        assertThat(v2.version()).isGreaterThan(v1.version());
+
+        var delta = timeline.changes(v1.version(), v2).orElseThrow();
+        assertThat(delta.getChanged()).extracting(d -> d.getPhenomenonTime().toInstant().toEpochMilli())
+                .containsExactly(9_000L, 3_000L);
+        assertThat(delta.getRemoved()).extracting(t -> t.toInstant().toEpochMilli()).containsExactly(1_000L);
+
+        assertThat(timeline.changes(v1.version() - 1, v2)).isEmpty(); // unknown version
+    }
+
+    @Test
+    void test_observations_replace_predictions_of_the_same_time() {
+
+        var timeline = new SignalTimeline();
+        timeline.update(List.of(dto(1_000, TrafficLightSignalState.GREEN)),
+                List.of(dto(2_000, TrafficLightSignalState.GREEN), dto(5_000, TrafficLightSignalState.RED)));
+        var v1 = timeline.getSnapshot();
+
+        timeline.update(List.of(dto(1_000, TrafficLightSignalState.GREEN), dto(2_000, TrafficLightSignalState.AMBER)),
+                List.of(dto(2_000, TrafficLightSignalState.GREEN), dto(5_000, TrafficLightSignalState.RED)));
+        var v2 = timeline.getSnapshot();
+        assertThat(v2.data()).extracting(d -> d.getPhenomenonTime().toInstant().toEpochMilli())
+                .containsExactly(5_000L, 2_000L, 1_000L);
+        assertThat(v2.data().get(1).getResult()).isEqualTo(TrafficLightSignalState.AMBER);
+
+        var delta = timeline.changes(v1.version(), v2).orElseThrow();
+        assertThat(delta.getChanged()).containsExactly(v2.data().get(1));
+        assertThat(delta.getRemoved()).isEmpty();
+    }
+
+    private static TrafficLightRtDataDto dto(long epochMillis, TrafficLightSignalState state) {
+        return new TrafficLightRtDataDto(OffsetDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneOffset.UTC),
+                state);
+    }
+
+}
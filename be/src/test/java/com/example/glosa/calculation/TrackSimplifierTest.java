@@ -0,0 +1,44 @@
+package com.example.glosa.calculation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+class TrackSimplifierTest {
+
+    record LatLon(double lat, double lon) {
+    }
+
+    @Test
+    void test_corners_are_kept_first() {
+
+        // north, then east, with 100 points per leg
+        var track = new ArrayList<LatLon>();
+        IntStream.range(0, 100).forEach(i -> track.add(new LatLon(i * 0.0001, 0)));
+        IntStream.range(0, 100).forEach(i -> track.add(new LatLon(0.01, i * 0.0001)));
+        var detour = new LatLon(0.005, 0.0003); // small spike on the first leg
+        track.add(50, detour);
+
+        assertThat(simplify(track, 3)).containsExactly(track.get(0), new LatLon(0.01, 0), track.get(200));
+        assertThat(simplify(track, 4)).hasSize(4).contains(detour);
+        assertThat(simplify(track, 1000)).isSameAs(track);
+    }
+
+    @Test
+    void test_straight_track_is_reduced_to_its_ends() {
+
+        var track = IntStream.range(0, 100).mapToObj(i -> new LatLon(53.5, 10 + i * 0.0001)).toList();
+
+        assertThat(simplify(track, 10)).containsExactly(track.get(0), track.get(99));
+        assertThat(simplify(track, 0)).hasSize(2);
+    }
+
+    private static List<LatLon> simplify(List<LatLon> track, int maxPoints) {
+        return TrackSimplifier.simplify(track, LatLon::lat, LatLon::lon, maxPoints);
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.example.glosa.calculation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.glosa.calculation.SpeedRecommender.RouteLoader;
+import com.example.glosa.calculation.TripSessions.Fix;
+import com.example.glosa.tracking.TrackedTripRepository;
+
+class TripSessionsTest {
+
+    private static final OffsetDateTime T0 = OffsetDateTime.parse("2023-05-01T12:00:00Z");
+
+    private final RouteLoader routeLoader = mock(RouteLoader.class);
+    private final TrackedTripRepository tripRepository = mock(TrackedTripRepository.class);
+    private final TripSessions sessions = new TripSessions(routeLoader, tripRepository, Duration.ofMinutes(30));
+
+    @Test
+    void test_sessions_are_loaded_once() {
+
+        when(tripRepository.findRouteNameById(1)).thenReturn(Optional.of("route_1"));
+
+        var session = sessions.get(1);
+        assertThat(sessions.get(1)).isSameAs(session);
+        verify(tripRepository, times(1)).findRouteNameById(1);
+        verify(routeLoader, times(1)).getCompiledRoute("route_1");
+
+        sessions.end(1);
+        assertThat(sessions.get(1)).isNotSameAs(session);
+
+        assertThatThrownBy(() -> sessions.get(2)).isInstanceOf(NoSuchElementException.class);
+    }
+
+    @Test
+    void test_started_sessions_do_not_need_the_trip() {
+
+        sessions.start(1, "route_1");
+        assertThat(sessions.get(1).getReachedIdx()).isZero();
+        verify(tripRepository, times(0)).findRouteNameById(1);
+    }
+
+    @Test
+    void test_older_fixes_are_ignored() {
+
+        sessions.start(1, "route_1");
+        var session = sessions.get(1);
+
+        session.update(5, 50, new Fix(T0.plusSeconds(2), 1, 2, null, null));
+        session.update(3, 30, new Fix(T0.plusSeconds(1), 1, 2, null, null)); // overtaken request
+
+        assertThat(session.getReachedIdx()).isEqualTo(5);
+        assertThat(session.getLastFix().time()).isEqualTo(T0.plusSeconds(2));
+    }
+
+}
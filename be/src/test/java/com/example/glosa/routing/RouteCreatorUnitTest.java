@@ -10,7 +10,11 @@ import java.util.Optional;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import com.example.glosa.calculation.CompiledRoute;
 import com.example.glosa.calculation.RouteSnapper;
 import com.example.glosa.routing.PlannedRoute.PlannedRouteRepository;
 import com.example.glosa.trafficlightdata.TrafficLightPositionProvider;
@@ -19,7 +23,8 @@ class RouteCreatorUnitTest {
 
     private TrafficLightPositionProvider tlpp = mock(TrafficLightPositionProvider.class);
     private PlannedRouteRepository routeRepository = mock(PlannedRouteRepository.class);
-    private RouteCreator creator = new RouteCreator(new RouteSnapper(), tlpp, routeRepository);
+    private ConcurrentMapCacheManager cacheManager = new ConcurrentMapCacheManager();
+    private RouteCreator creator = new RouteCreator(new RouteSnapper(), tlpp, routeRepository, cacheManager);
 
     @BeforeEach
     void beforeEach() {
@@ -66,6 +71,25 @@ class RouteCreatorUnitTest {
         assertThat(result.getPoints().get(5)).isEqualTo(trafficLight3);
     }
 
+    @Test
+    void test_compiled_route_is_evicted_after_commit() {
+
+        when(routeRepository.findByName("test_1")).thenReturn(Optional.of(new PlannedRoute()));
+        var cache = cacheManager.getCache(CompiledRoute.CACHE_NAME);
+        cache.put("test_1", "compiled");
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            creator.deleteByName("test_1");
+            assertThat(cache.get("test_1")).isNotNull(); // not committed yet
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+            assertThat(cache.get("test_1")).isNull();
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
     private void setup(PlannedRoutePoint trafficLight) {
         when(tlpp.toTrafficLightRoutePoint(Mockito.eq(trafficLight.getTrafficLightId()), Mockito.anyBoolean())).thenReturn(trafficLight);
     }
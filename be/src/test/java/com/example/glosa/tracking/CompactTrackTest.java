@@ -0,0 +1,46 @@
+package com.example.glosa.tracking;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+
+class CompactTrackTest {
+
+    private static final OffsetDateTime T0 = OffsetDateTime.parse("2023-05-01T14:00:00.123456+02:00");
+
+    @Test
+    void test_positions_are_restored() {
+
+        var positions = List.of(
+                new TrackedPosition(53.5511, 9.9937, 4.5, 12.25, 3.0, 271.5, 5.75, T0),
+                new TrackedPosition(53.5512345, 9.9936789, null, null, null, null, null, T0.plusNanos(999_000)),
+                new TrackedPosition(-33.8688, -151.2093, 0.0, -2.0, null, 0.0, 0.0,
+                        T0.plusHours(1).withOffsetSameInstant(ZoneOffset.UTC)));
+
+        assertThat(CompactTrack.decode(CompactTrack.encode(positions))).isEqualTo(positions);
+        assertThat(CompactTrack.decode(CompactTrack.encode(List.of()))).isEmpty();
+    }
+
+    @Test
+    void test_track_is_small() {
+
+        var positions = new ArrayList<TrackedPosition>();
+        for (int i = 0; i < 3600; i++) { // 1 hour, 1 fix per second at ~5 m/s heading north
+            positions.add(new TrackedPosition(53.55 + i * 0.00005, 9.99, 5.0, 10.0, 3.0, 0.0, 5.0,
+                    T0.plusSeconds(i)));
+        }
+
+        var track = CompactTrack.encode(positions);
+
+        assertThat(track.length).isLessThan(positions.size() * 14);
+        assertThat(CompactTrack.lastMeasurementTime(track)).isEqualTo(T0.plusSeconds(3599));
+    }
+
+}
@@ -2,19 +2,40 @@ package com.example.glosa.tracking;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
 
 import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
 
 @SpringBootTest
 class LocationTrackingLifecycleTest {
 
+    @TempDir
+    static Path archiveDirectory;
+
+    @DynamicPropertySource
+    static void archiveDirectory(DynamicPropertyRegistry registry) {
+        registry.add("tracking.archive.directory", () -> archiveDirectory.toString());
+    }
+
     @Autowired
     private LocationTrackingService service;
 
@@ -24,6 +45,18 @@ class LocationTrackingLifecycleTest {
     @Autowired
     private TrackedLocationRepository locationRepository;
 
+    @Autowired
+    private LocationTrackingQueryService queryService;
+
+    @Autowired
+    private TrackRetention trackRetention;
+
+    @SpyBean
+    private TrackArchive trackArchive;
+
+    @Autowired
+    private TrackedLocationBulkWriter bulkWriter;
+
     @Test
     void test_happy_path() {
 
@@ -43,7 +76,9 @@ class LocationTrackingLifecycleTest {
 
         // some assertions
         assertThat(tripRepository.findById(tripId)).isPresent();
-        assertThat(tripRepository.findWithLocationsById(tripId).get().getLocations()).hasSize(3);
+        assertThat(tripRepository.findWithLocationsById(tripId).get().getLocations()).isEmpty(); // compacted
+        assertThat(queryService.getPositions(tripId, Optional.empty(), Optional.empty()))
+                .extracting(TrackedPosition::getLat).containsExactly(-1.0, 2.0, 3.0);
 
         // start trip 2
         var tripId2 = service.startNewTrip(OffsetDateTime.now(), "route_3");
@@ -59,9 +94,132 @@ class LocationTrackingLifecycleTest {
 
         // some assertions
         assertThat(tripRepository.count()).isGreaterThanOrEqualTo(2);
-        assertThat(locationRepository.count()).isGreaterThanOrEqualTo(5);
         assertThat(tripRepository.findById(tripId2)).isPresent();
-        assertThat(tripRepository.findWithLocationsById(tripId2).get().getLocations()).hasSize(2);
+        assertThat(queryService.getPositions(tripId2, Optional.empty(), Optional.empty())).hasSize(2);
+    }
+
+    @Test
+    void test_late_positions_of_ended_trips() {
+
+        var start = OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        var tripId = service.startNewTrip(start, "route_3");
+        service.trackLocations(tripId, List.of(
+                new TrackedPosition(1.0, 1.0, start.plusSeconds(1)),
+                new TrackedPosition(2.0, 2.0, start.plusSeconds(2))));
+        service.endTrip(tripId, start.plusSeconds(3));
+
+        // e.g. uploaded from the client's buffer: stored as locations, already compacted ones skipped
+        service.trackLocations(tripId, List.of(
+                new TrackedPosition(2.0, 2.0, start.plusSeconds(2)),
+                new TrackedPosition(3.0, 3.0, start.plusSeconds(3))));
+        assertThat(locationRepository.findLastMeasurementTime(tripId)).isPresent();
+        assertThat(queryService.getPositions(tripId, Optional.of(start.plusSeconds(2)), Optional.empty()))
+                .extracting(TrackedPosition::getLat).containsExactly(2.0, 3.0);
+
+        service.endTrip(tripId, start.plusSeconds(4));
+        assertThat(locationRepository.findLastMeasurementTime(tripId)).isEmpty();
+        assertThat(queryService.getPositions(tripId, Optional.empty(), Optional.empty()))
+                .extracting(TrackedPosition::getLat).containsExactly(1.0, 2.0, 3.0);
+    }
+
+    @Test
+    void test_archived_trips_are_still_readable() {
+
+        var start = OffsetDateTime.parse("2001-02-03T04:05:06Z");
+        var tripId = service.startNewTrip(start, "route_3");
+        service.trackLocations(tripId, List.of(
+                new TrackedPosition(1.0, 1.0, start.plusSeconds(1)),
+                new TrackedPosition(2.0, 2.0, start.plusSeconds(2))));
+        service.endTrip(tripId, start.plusSeconds(3));
+
+        trackRetention.archiveMonthsBefore(YearMonth.of(2001, 3));
+
+        assertThat(tripRepository.findById(tripId).get().getArchiveMonth()).isEqualTo("2001-02");
+        assertThat(tripRepository.findCompactedTrackById(tripId)).isEmpty();
+        assertThat(queryService.getPositions(tripId, Optional.empty(), Optional.empty()))
+                .extracting(TrackedPosition::getLat).containsExactly(1.0, 2.0);
+        assertThat(queryService.getTrips()).extracting(TrackedTripSummary::id).contains(tripId);
+    }
+
+    @Test
+    void test_trips_ended_again_while_archiving_keep_their_track() throws IOException {
+
+        var start = OffsetDateTime.parse("2001-03-04T05:06:07Z");
+        var tripId = service.startNewTrip(start, "route_3");
+        service.trackLocations(tripId, List.of(new TrackedPosition(1.0, 1.0, start.plusSeconds(1))));
+        service.endTrip(tripId, start.plusSeconds(2));
+
+        // a late position, compacted after the track has been read and written to the archive
+        doAnswer(open -> {
+            var writer = spy((TrackArchive.MonthWriter) open.callRealMethod());
+            doAnswer(commit -> {
+                var result = commit.callRealMethod();
+                service.trackLocations(tripId, List.of(new TrackedPosition(2.0, 2.0, start.plusSeconds(3))));
+                service.endTrip(tripId, start.plusSeconds(4));
+                return result;
+            }).when(writer).commit();
+            return writer;
+        }).doCallRealMethod().when(trackArchive).open(YearMonth.of(2001, 3));
+
+        trackRetention.archiveMonthsBefore(YearMonth.of(2001, 4));
+        assertThat(tripRepository.findArchiveMonthById(tripId)).isEmpty(); // skipped
+        assertThat(queryService.getPositions(tripId, Optional.empty(), Optional.empty()))
+                .extracting(TrackedPosition::getLat).containsExactly(1.0, 2.0);
+
+        trackRetention.archiveMonthsBefore(YearMonth.of(2001, 4)); // next run
+        assertThat(tripRepository.findArchiveMonthById(tripId)).hasValue("2001-03");
+        assertThat(queryService.getPositions(tripId, Optional.empty(), Optional.empty()))
+                .extracting(TrackedPosition::getLat).containsExactly(1.0, 2.0);
+    }
+
+    @Test
+    void test_out_of_order_positions_are_stored() {
+
+        var start = OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        var tripId = service.startNewTrip(start, "route_3");
+
+        // overlapping uploads, the later one first
+        service.trackLocations(tripId, List.of(
+                new TrackedPosition(2.0, 2.0, start.plusSeconds(2)),
+                new TrackedPosition(3.0, 3.0, start.plusSeconds(3))));
+        service.trackLocations(tripId, List.of(
+                new TrackedPosition(1.0, 1.0, start.plusSeconds(1)),
+                new TrackedPosition(2.0, 2.0, start.plusSeconds(2))));
+
+        // e.g. a queued retry: skipped
+        bulkWriter.insertAll(tripId, List.of(new TrackedPosition(3.0, 3.0, start.plusSeconds(3))));
+
+        assertThat(queryService.getPositions(tripId, Optional.empty(), Optional.empty()))
+                .extracting(TrackedPosition::getLat).containsExactly(1.0, 2.0, 3.0);
+    }
+
+    @Test
+    void test_trip_pages() {
+
+        var start = OffsetDateTime.parse("2001-04-05T06:07:08Z");
+        var earlier = List.of(service.startNewTrip(start.minusSeconds(1), "route_3"),
+                service.startNewTrip(start.minusSeconds(1), "route_3"));
+        var sameStart = List.of(service.startNewTrip(start, "route_3"), service.startNewTrip(start, "route_3"),
+                service.startNewTrip(start, "route_3"));
+        var created = new HashSet<Long>(earlier);
+        created.addAll(sameStart);
+
+        // pages of 2, starting just after the created trips: ties are ordered by id, none skipped or repeated
+        var ids = new ArrayList<Long>();
+        var cursor = new TrackedTripSummary.Cursor(start.plusSeconds(1), 0);
+        while (!cursor.tripStartTime().isBefore(start.minusSeconds(1))) {
+            var page = queryService.getTrips(Optional.of(TrackedTripSummary.Cursor.decode(cursor.encode())), 2);
+            page.forEach(t -> ids.add(t.id()));
+            if (page.size() < 2)
+                break;
+            cursor = TrackedTripSummary.Cursor.after(page.get(1));
+        }
+        assertThat(ids).doesNotHaveDuplicates();
+        assertThat(ids.stream().filter(created::contains)).containsExactly(sameStart.get(2), sameStart.get(1),
+                sameStart.get(0), earlier.get(1), earlier.get(0)); // trips of earlier runs in between
+
+        assertThatThrownBy(() -> TrackedTripSummary.Cursor.decode("not-a-cursor"))
+                .isInstanceOf(IllegalArgumentException.class);
     }
 
     @Test
@@ -79,19 +237,19 @@ class LocationTrackingLifecycleTest {
                 new TrackedPosition(-1.0, 1.5, measurementTime1),
                 new TrackedPosition(-1.0, 1.5, measurementTime2)));
 
-        // existing measurement_time
-        assertThatThrownBy(() -> service.trackLocations(tripId,
+        // existing measurement_time (e.g. a retry): skipped
+        service.trackLocations(tripId,
                 List.of(
-                        new TrackedPosition(-1.0, 1.5, measurementTime1))))
-                .isInstanceOf(Exception.class);
+                        new TrackedPosition(-1.0, 1.5, measurementTime1)));
+        assertThat(tripRepository.findWithLocationsById(tripId).get().getLocations()).hasSize(2);
 
-        // same measurement_times
+        // same measurement_times: stored once, together with the new ones
         OffsetDateTime measurementTime3 = OffsetDateTime.now().plusMinutes(3);
-        assertThatThrownBy(
-                () -> service.trackLocations(tripId, List.of(
-                        new TrackedPosition(-1.0, 1.5, measurementTime3),
-                        new TrackedPosition(-1.0, 1.5, measurementTime3))))
-                .isInstanceOf(Exception.class);
+        service.trackLocations(tripId, List.of(
+                new TrackedPosition(-1.0, 1.5, measurementTime2),
+                new TrackedPosition(-1.0, 1.5, measurementTime3),
+                new TrackedPosition(-1.0, 1.5, measurementTime3)));
+        assertThat(tripRepository.findWithLocationsById(tripId).get().getLocations()).hasSize(3);
 
         // // measurement_time too early
         // assertThatThrownBy(() -> service.trackLocations(tripId,
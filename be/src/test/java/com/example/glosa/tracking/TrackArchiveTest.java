@@ -0,0 +1,72 @@
+package com.example.glosa.tracking;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TrackArchiveTest {
+
+    private static final YearMonth MONTH = YearMonth.of(2023, 5);
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    void test_tracks_are_added_to_the_month() throws IOException {
+
+        var archive = new TrackArchive(directory);
+        try (var writer = archive.open(MONTH)) {
+            writer.add(1, new byte[] { 1, 2, 3 });
+            writer.add(2, new byte[] { 4 });
+            writer.commit();
+        }
+        try (var writer = archive.open(MONTH)) {
+            writer.add(2, new byte[] { 5 }); // archived again
+            writer.add(3, new byte[] { 6 });
+            writer.commit();
+        }
+
+        assertThat(archive.read(MONTH.toString(), 1)).hasValue(new byte[] { 1, 2, 3 });
+        assertThat(archive.read(MONTH.toString(), 2)).hasValue(new byte[] { 5 });
+        assertThat(archive.read(MONTH.toString(), 3)).hasValue(new byte[] { 6 });
+        assertThat(archive.read(MONTH.toString(), 4)).isEmpty();
+        assertThat(Files.list(directory)).containsExactly(directory.resolve("tracks-2023-05.zip"));
+    }
+
+    @Test
+    void test_uncommitted_tracks_are_discarded() throws IOException {
+
+        var archive = new TrackArchive(directory);
+        try (var writer = archive.open(MONTH)) {
+            writer.add(1, new byte[] { 1 });
+            writer.commit();
+        }
+        assertThatThrownBy(() -> {
+            try (var writer = archive.open(MONTH)) {
+                writer.add(2, new byte[] { 2 });
+                throw new IllegalStateException("e.g. a track could not be loaded");
+            }
+        }).isInstanceOf(IllegalStateException.class);
+
+        assertThat(archive.read(MONTH.toString(), 1)).hasValue(new byte[] { 1 });
+        assertThat(archive.read(MONTH.toString(), 2)).isEmpty();
+        assertThat(Files.list(directory)).containsExactly(directory.resolve("tracks-2023-05.zip"));
+    }
+
+    @Test
+    void test_missing_month() {
+
+        var archive = new TrackArchive(directory);
+
+        assertThatThrownBy(() -> archive.read(MONTH.toString(), 1)).isInstanceOf(UncheckedIOException.class);
+    }
+
+}
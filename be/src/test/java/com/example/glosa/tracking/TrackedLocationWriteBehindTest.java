@@ -0,0 +1,121 @@
+package com.example.glosa.tracking;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionOperations;
+
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+import com.example.glosa.tracking.TrackedLocationBulkWriter.TripPositions;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class TrackedLocationWriteBehindTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final RecordingBulkWriter bulkWriter = new RecordingBulkWriter();
+
+    private final TripWatermarks tripWatermarks = mock(TripWatermarks.class);
+
+    @Test
+    void test_queued_positions_are_written_in_groups() throws InterruptedException {
+
+        bulkWriter.blocked = new CountDownLatch(1);
+        var writeBehind = writeBehind(true, 100);
+
+        for (long tripId = 1; tripId <= 10; tripId++) {
+            assertThat(writeBehind.offer(tripId, List.of(position(0), position(1)))).isTrue();
+        }
+        bulkWriter.blocked.countDown();
+        writeBehind.stop(); // drains the queue
+
+        assertThat(bulkWriter.written).hasSize(10);
+        assertThat(bulkWriter.batches).isLessThan(10);
+        assertThat(meterRegistry.get("tracking.write-behind.commit").timer().count()).isEqualTo(bulkWriter.batches);
+        assertThat(meterRegistry.get("tracking.write-behind.queue.depth").gauge().value()).isZero();
+    }
+
+    @Test
+    void test_failing_requests_do_not_block_the_others() throws InterruptedException {
+
+        bulkWriter.blocked = new CountDownLatch(1);
+        bulkWriter.failingTripId = 2;
+        var writeBehind = writeBehind(true, 100);
+
+        for (long tripId = 1; tripId <= 3; tripId++) {
+            writeBehind.offer(tripId, List.of(position(0)));
+        }
+        bulkWriter.blocked.countDown();
+        writeBehind.stop();
+
+        assertThat(bulkWriter.written).extracting(TripPositions::tripId).containsExactlyInAnyOrder(1L, 3L);
+        assertThat(meterRegistry.get("tracking.write-behind.failed").counter().count()).isEqualTo(1);
+        verify(tripWatermarks).reset(2); // the dropped positions are accepted again
+        verifyNoMoreInteractions(tripWatermarks);
+    }
+
+    @Test
+    void test_full_or_disabled_queue_is_not_used() throws InterruptedException {
+
+        bulkWriter.blocked = new CountDownLatch(1);
+        var writeBehind = writeBehind(true, 1);
+        assertThat(writeBehind.offer(1, List.of(position(0)))).isTrue(); // taken by the (blocked) writer
+        while (meterRegistry.get("tracking.write-behind.queue.depth").gauge().value() > 0)
+            Thread.onSpinWait();
+        assertThat(writeBehind.offer(2, List.of(position(0)))).isTrue(); // queued
+        assertThat(writeBehind.offer(3, List.of(position(0)))).isFalse(); // full
+        bulkWriter.blocked.countDown();
+        writeBehind.stop();
+
+        assertThat(writeBehind.offer(4, List.of(position(0)))).isFalse(); // stopped
+
+        assertThat(writeBehind(false, 100).offer(5, List.of(position(0)))).isFalse();
+    }
+
+    private TrackedLocationWriteBehind writeBehind(boolean enabled, int capacity) {
+        var writeBehind = new TrackedLocationWriteBehind(bulkWriter, TransactionOperations.withoutTransaction(),
+                tripWatermarks, meterRegistry, enabled, capacity, Duration.ofMillis(50), Duration.ofSeconds(10));
+        writeBehind.start();
+        return writeBehind;
+    }
+
+    private static TrackedPosition position(int i) {
+        return new TrackedPosition(1.0, 2.0, OffsetDateTime.now().plusSeconds(i));
+    }
+
+    private static class RecordingBulkWriter extends TrackedLocationBulkWriter {
+
+        final List<TripPositions> written = new CopyOnWriteArrayList<>();
+        volatile int batches;
+        volatile long failingTripId = -1;
+        volatile CountDownLatch blocked = new CountDownLatch(0);
+
+        RecordingBulkWriter() {
+            super(null);
+        }
+
+        @Override
+        void insertAll(List<TripPositions> trips) {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (trips.stream().anyMatch(t -> t.tripId() == failingTripId))
+                throw new IllegalStateException("duplicate measurement-time");
+            written.addAll(trips);
+            batches++;
+        }
+    }
+
+}
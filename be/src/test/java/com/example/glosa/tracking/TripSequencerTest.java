@@ -0,0 +1,65 @@
+package com.example.glosa.tracking;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import org.junit.jupiter.api.Test;
+
+class TripSequencerTest {
+
+    private final TripSequencer sequencer = new TripSequencer();
+
+    @Test
+    void test_same_trip_is_never_modified_concurrently() {
+
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+
+        var futures = IntStream.range(0, 16).mapToObj(i -> CompletableFuture.runAsync(() -> {
+            for (int j = 0; j < 100; j++) {
+                sequencer.inOrder(42, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.yield();
+                    return running.decrementAndGet();
+                });
+            }
+        })).toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(futures).join();
+
+        assertThat(maxRunning).hasValue(1);
+    }
+
+    @Test
+    void test_other_trips_are_not_blocked() throws InterruptedException {
+
+        var release = new CountDownLatch(1);
+        var blocking = CompletableFuture.runAsync(() -> sequencer.inOrder(1, () -> {
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+
+        long otherTrip = LongStream.range(2, 1000)
+                .filter(id -> TripSequencer.stripe(id) != TripSequencer.stripe(1)).findFirst().orElseThrow();
+        assertThat(sequencer.inOrder(otherTrip, () -> "done")).isEqualTo("done");
+
+        release.countDown();
+        blocking.join();
+    }
+
+    @Test
+    void test_consecutive_trips_use_different_stripes() {
+
+        assertThat(LongStream.range(1, 1 + TripSequencer.STRIPES).map(TripSequencer::stripe).distinct().count())
+                .isGreaterThan(TripSequencer.STRIPES / 2);
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.example.glosa.tracking;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class TripWatermarksTest {
+
+    private static final OffsetDateTime T0 = OffsetDateTime.parse("2023-05-01T12:00:00Z");
+
+    private final TrackedLocationRepository repository = mock(TrackedLocationRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TrackedTripRepository tripRepository = mock(TrackedTripRepository.class);
+    private final TripWatermarks watermarks = new TripWatermarks(repository, tripRepository, meterRegistry);
+
+    @Test
+    void test_stored_positions_are_skipped() {
+
+        when(repository.findLastMeasurementTime(1)).thenReturn(Optional.of(T0.plusSeconds(2)));
+        when(repository.findMeasurementTimes(eq(1L), any())).thenReturn(List.of(time(1), time(2)));
+
+        var result = watermarks.newPositions(1, List.of(position(3), position(1), position(2), position(4)));
+
+        assertThat(result).containsExactly(position(3), position(4));
+        assertThat(meterRegistry.get("tracking.positions.duplicates").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void test_missing_older_positions_are_accepted() {
+
+        // e.g. overlapping uploads: the later one was stored first
+        when(repository.findLastMeasurementTime(1)).thenReturn(Optional.of(T0.plusSeconds(3)));
+        when(repository.findMeasurementTimes(eq(1L), any())).thenReturn(List.of(time(2), time(3)));
+
+        var result = watermarks.newPositions(1, List.of(position(4), position(3), position(2), position(1)));
+
+        assertThat(result).containsExactly(position(1), position(4));
+        assertThat(meterRegistry.get("tracking.positions.duplicates").counter().count()).isEqualTo(2);
+        assertThat(meterRegistry.get("tracking.positions.out-of-order").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void test_compacted_positions_are_skipped() {
+
+        when(repository.findLastMeasurementTime(1)).thenReturn(Optional.empty());
+        when(repository.findMeasurementTimes(eq(1L), any())).thenReturn(List.of());
+        when(tripRepository.findCompactedTrackById(1))
+                .thenReturn(Optional.of(CompactTrack.encode(List.of(position(1), position(2)))));
+
+        assertThat(watermarks.newPositions(1, List.of(position(2), position(3)))).containsExactly(position(3));
+    }
+
+    @Test
+    void test_watermark_is_advanced_in_memory() {
+
+        when(repository.findLastMeasurementTime(1)).thenReturn(Optional.empty());
+
+        var first = watermarks.newPositions(1, List.of(position(1), position(2), position(2)));
+        assertThat(first).containsExactly(position(1), position(2));
+        watermarks.advance(1, first);
+        when(repository.findMeasurementTimes(eq(1L), any())).thenReturn(List.of(time(1), time(2)));
+
+        // retry incl. one new position
+        assertThat(watermarks.newPositions(1, List.of(position(1), position(2), position(3))))
+                .containsExactly(position(3));
+        verify(repository, times(1)).findLastMeasurementTime(1);
+    }
+
+    @Test
+    void test_watermark_is_not_advanced_without_store() {
+
+        when(repository.findLastMeasurementTime(1)).thenReturn(Optional.empty());
+
+        watermarks.newPositions(1, List.of(position(1))); // e.g. rolled back
+
+        assertThat(watermarks.newPositions(1, List.of(position(1)))).containsExactly(position(1));
+    }
+
+    private static TrackedPosition position(int s) {
+        return new TrackedPosition(1.0, 2.0, time(s));
+    }
+
+    private static OffsetDateTime time(int s) {
+        return T0.plusSeconds(s);
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.example.glosa.tracking;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.glosa.tracking.TrackedLocation.TrackedPosition;
+
+@SpringBootTest(properties = "tracking.write-behind.enabled=true")
+class WriteBehindLifecycleTest {
+
+    @TempDir
+    static Path archiveDirectory;
+
+    @DynamicPropertySource
+    static void archiveDirectory(DynamicPropertyRegistry registry) {
+        registry.add("tracking.archive.directory", () -> archiveDirectory.toString());
+    }
+
+    @Autowired
+    private LocationTrackingService service;
+
+    @Autowired
+    private TrackedLocationRepository locationRepository;
+
+    @Autowired
+    private LocationTrackingQueryService queryService;
+
+    @Autowired
+    private TrackedLocationBulkWriter bulkWriter;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @SpyBean
+    private TrackedLocationReader locationReader;
+
+    @Test
+    void test_trips_ended_while_positions_are_queued() throws InterruptedException {
+
+        var start = OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        var tripId = service.startNewTrip(start, "route_3");
+        for (int i = 1; i <= 20; i++) {
+            service.trackLocations(tripId, List.of(new TrackedPosition((double) i, 1.0, start.plusSeconds(i))));
+        }
+        service.endTrip(tripId, start.plusSeconds(21)); // some positions may still be queued
+
+        awaitPositions(tripId, 20);
+        service.endTrip(tripId, start.plusSeconds(21));
+        assertThat(locationRepository.findLastMeasurementTime(tripId)).isEmpty();
+        assertThat(queryService.getPositions(tripId, Optional.empty(), Optional.empty())).hasSize(20);
+    }
+
+    @Test
+    void test_positions_committed_during_compaction_are_kept() {
+
+        var start = OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        var tripId = service.startNewTrip(start, "route_3");
+        bulkWriter.insertAll(tripId, List.of(new TrackedPosition(1.0, 1.0, start.plusSeconds(1))));
+
+        // the write-behind commits a position after the locations have been read
+        doAnswer(invocation -> {
+            invocation.callRealMethod();
+            var requiresNew = new TransactionTemplate(transactionManager);
+            requiresNew.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+            requiresNew.executeWithoutResult(tx -> bulkWriter.insertAll(tripId,
+                    List.of(new TrackedPosition(2.0, 2.0, start.plusSeconds(2)))));
+            return null;
+        }).when(locationReader).forEachPosition(anyLong(), any(Consumer.class));
+        service.endTrip(tripId, start.plusSeconds(3));
+
+        assertThat(locationRepository.findLastMeasurementTime(tripId)).isPresent(); // not compacted, not lost
+        assertThat(queryService.getPositions(tripId, Optional.empty(), Optional.empty()))
+                .extracting(TrackedPosition::getLat).containsExactly(1.0, 2.0);
+    }
+
+    private void awaitPositions(long tripId, int count) throws InterruptedException {
+        var deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (queryService.getPositions(tripId, Optional.empty(), Optional.empty()).size() < count
+                && System.nanoTime() < deadline)
+            Thread.sleep(10);
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.example.glosa.trafficlightdata;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightRtDataDto;
+import com.example.glosa.calculation.SpeedRecommender.TrafficLightSignalState;
+
+class FixedCyclePredictorTest {
+
+    private static final OffsetDateTime T0 = OffsetDateTime.parse("2023-05-01T12:00:00Z");
+
+    @Test
+    void test_fixed_cycle_is_extrapolated() {
+
+        var input = cycles(4, 30, 40); // red 30s (incl. red-amber), green 40s (incl. amber)
+        var last = input.get(input.size() - 1).getPhenomenonTime(); // green
+        var now = last.plusSeconds(5);
+
+        var prediction = FixedCyclePredictor.predict(input, now).orElseThrow();
+
+        assertThat(prediction).containsExactly(
+                new TrafficLightRtDataDto(last.plusSeconds(40), TrafficLightSignalState.RED),
+                new TrafficLightRtDataDto(last.plusSeconds(70), TrafficLightSignalState.GREEN));
+    }
+
+    @Test
+    void test_passed_changes_are_predicted_from_now() {
+
+        var input = cycles(4, 30, 40);
+        var last = input.get(input.size() - 1).getPhenomenonTime();
+        var now = last.plusMinutes(10); // red not observed yet
+
+        var prediction = FixedCyclePredictor.predict(input, now).orElseThrow();
+
+        assertThat(prediction).containsExactly(
+                new TrafficLightRtDataDto(now.plusSeconds(1), TrafficLightSignalState.RED),
+                new TrafficLightRtDataDto(now.plusSeconds(31), TrafficLightSignalState.GREEN));
+    }
+
+    @Test
+    void test_irregular_cycle_is_not_predicted() {
+
+        var input = new ArrayList<>(cycles(2, 30, 40));
+        var last = input.get(input.size() - 1).getPhenomenonTime();
+        input.add(new TrafficLightRtDataDto(last.plusSeconds(15), TrafficLightSignalState.RED)); // green 15s
+        input.add(new TrafficLightRtDataDto(last.plusSeconds(45), TrafficLightSignalState.GREEN));
+
+        assertThat(FixedCyclePredictor.predict(input, last.plusSeconds(50))).isEmpty();
+    }
+
+    @Test
+    void test_states_without_duration_are_not_predicted() {
+
+        var input = cycles(4, 30, 40);
+        var last = input.get(input.size() - 1).getPhenomenonTime();
+
+        assertThat(FixedCyclePredictor.predict(input.subList(0, 3), last)).isEmpty(); // no green duration
+        assertThat(FixedCyclePredictor.predict(input.subList(0, 5), last)).isPresent();
+    }
+
+    /**
+     * red, red-amber, green, amber, ... (ending with green)
+     */
+    private static List<TrafficLightRtDataDto> cycles(int n, int redS, int greenS) {
+        var result = new ArrayList<TrafficLightRtDataDto>();
+        var t = T0;
+        for (int i = 0; i < n; i++) {
+            result.add(new TrafficLightRtDataDto(t, TrafficLightSignalState.RED));
+            result.add(new TrafficLightRtDataDto(t.plusSeconds(redS - 2), TrafficLightSignalState.RED_AMBER));
+            t = t.plusSeconds(redS);
+            result.add(new TrafficLightRtDataDto(t, TrafficLightSignalState.GREEN));
+            if (i < n - 1)
+                result.add(new TrafficLightRtDataDto(t.plusSeconds(greenS - 3), TrafficLightSignalState.AMBER));
+            t = t.plusSeconds(greenS);
+        }
+        return result;
+    }
+
+}
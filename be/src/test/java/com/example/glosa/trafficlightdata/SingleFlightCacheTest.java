@@ -0,0 +1,140 @@
+package com.example.glosa.trafficlightdata;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class SingleFlightCacheTest {
+
+    private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void test_fresh_entries_are_reused() {
+
+        var cache = new SingleFlightCache<String, Integer>("test", Duration.ofMinutes(1), meterRegistry);
+        var loads = new AtomicInteger();
+
+        assertThat(cache.get("a", () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(cache.get("a", () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(cache.get("b", () -> completed(loads.incrementAndGet())).join()).isEqualTo(2);
+
+        assertThat(count("hit")).isEqualTo(1);
+        assertThat(count("miss")).isEqualTo(2);
+    }
+
+    @Test
+    void test_expired_entries_are_reloaded() {
+
+        var cache = new SingleFlightCache<String, Integer>("test", Duration.ZERO, meterRegistry);
+        var loads = new AtomicInteger();
+
+        assertThat(cache.get("a", () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(cache.get("a", () -> completed(loads.incrementAndGet())).join()).isEqualTo(2);
+    }
+
+    @Test
+    void test_expired_entries_are_evicted() {
+
+        var nanos = new AtomicLong();
+        var cache = new SingleFlightCache<String, Integer>("test", Duration.ofSeconds(1), meterRegistry, nanos::get);
+        var pending = new CompletableFuture<Integer>();
+
+        cache.get("a", () -> completed(1));
+        cache.get("b", () -> pending);
+        assertThat(cache.size()).isEqualTo(2);
+
+        nanos.addAndGet(Duration.ofSeconds(2).toNanos());
+        assertThat(cache.size()).isEqualTo(1); // without requesting "a" again, loading "b" is kept
+
+        pending.complete(2);
+        nanos.addAndGet(Duration.ofSeconds(2).toNanos());
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void test_entries_of_other_versions_are_replaced() {
+
+        var cache = new SingleFlightCache<String, Integer>("test", Duration.ofMinutes(1), meterRegistry);
+        var loads = new AtomicInteger();
+
+        assertThat(cache.get("a", "v1", () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(cache.get("a", "v1", () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(cache.get("a", "v2", () -> completed(loads.incrementAndGet())).join()).isEqualTo(2);
+        assertThat(cache.get("a", "v2", () -> completed(loads.incrementAndGet())).join()).isEqualTo(2);
+    }
+
+    @Test
+    void test_older_versions_do_not_replace_newer_entries() {
+
+        var cache = new SingleFlightCache<String, Integer>("test", Duration.ofMinutes(1), meterRegistry);
+        var loads = new AtomicInteger();
+
+        assertThat(cache.get("a", 2, () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(cache.get("a", 1, () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(cache.get("a", null, () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(cache.get("a", 2, () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void test_older_versions_of_expired_entries_are_not_cached() {
+
+        var cache = new SingleFlightCache<String, Integer>("test", Duration.ZERO, meterRegistry);
+        var loads = new AtomicInteger();
+
+        assertThat(cache.get("a", 2, () -> completed(loads.incrementAndGet())).join()).isEqualTo(1);
+        assertThat(cache.get("a", 1, () -> completed(loads.incrementAndGet())).join()).isEqualTo(2);
+        assertThat(cache.get("a", 3, () -> completed(loads.incrementAndGet())).join()).isEqualTo(3);
+    }
+
+    @Test
+    void test_concurrent_misses_share_one_load() {
+
+        var cache = new SingleFlightCache<String, Integer>("test", Duration.ofMinutes(1), meterRegistry);
+        var loads = new AtomicInteger();
+        var pending = new CompletableFuture<Integer>();
+
+        var first = cache.get("a", () -> {
+            loads.incrementAndGet();
+            return pending;
+        });
+        var others = IntStream.range(0, 7)
+                .mapToObj(i -> cache.get("a", () -> completed(loads.incrementAndGet()))).toList();
+        assertThat(first).isNotDone();
+        assertThat(count("coalesced")).isEqualTo(7);
+
+        pending.complete(1);
+
+        assertThat(first.join()).isEqualTo(1);
+        others.forEach(other -> assertThat(other.join()).isEqualTo(1));
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void test_failures_are_not_cached() {
+
+        var cache = new SingleFlightCache<String, Integer>("test", Duration.ofMinutes(1), meterRegistry);
+
+        assertThat(cache.get("a", () -> CompletableFuture.failedFuture(new IllegalStateException("upstream down"))))
+                .isCompletedExceptionally();
+
+        assertThat(cache.get("a", () -> completed(1)).join()).isEqualTo(1);
+    }
+
+    private static CompletableFuture<Integer> completed(int value) {
+        return CompletableFuture.completedFuture(value);
+    }
+
+    private double count(String result) {
+        return meterRegistry.get("singleflight.cache.gets").tag("result", result).counter().count();
+    }
+
+}
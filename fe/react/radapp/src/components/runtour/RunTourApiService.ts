@@ -22,13 +22,23 @@ export enum Recommendation {
     SLOWER = "SLOWER", KEEP = "KEEP", QUICKER = "QUICKER"
 }
 
+interface DataPoint {
+    phenomenonTime: string,
+    result: string,
+}
+
 interface Response {
     trafficLightId: string,
     distanceM: number,
     snappedTo: { lat: number, lon: number, reachedIdx: number },
-    data: { phenomenonTime: string, result: string }[],
+    data?: DataPoint[],
     necessarySpeed?: number,
     recommendation?: Recommendation,
+    dataVersion?: number,
+    // instead of data, changes since the sent dataVersion
+    dataDelta?: { fromVersion: number, changed: DataPoint[], removed: string[] },
+    // earlier requests get the same recommendation
+    nextPollAfterMs?: number,
 }
 
 export interface ApiResponse {
@@ -58,6 +68,9 @@ export class RunTourApiService {
     private isRequestPending = false;
     private requestTimer: number | undefined;
     private reachedIdx = 0;
+    private data: DataPoint[] = [];
+    private dataVersion: number | undefined;
+    private advisedTimeBetweenRequests: number | undefined;
     private consecutiveRequestFailures = 0;
     private static readonly MAX_CONSECUTIVE_REQUEST_FAILURES = 10;
 
@@ -112,7 +125,8 @@ export class RunTourApiService {
         try {
             response = await fetch(
                 window.origin + "/api/tour/" + this.tourId + "/traffic-lights-data"
-                + "?reachedIdx=" + this.reachedIdx, {
+                + "?reachedIdx=" + this.reachedIdx
+                + (this.dataVersion !== undefined ? "&dataVersion=" + this.dataVersion : ""), {
                 method: "POST",
                 headers: { "Content-Type": "application/json", },
                 body: JSON.stringify(data),
@@ -146,6 +160,8 @@ export class RunTourApiService {
         const responseBody: Response = await response.json();
 
         this.reachedIdx = responseBody.snappedTo.reachedIdx;
+        this.applyData(responseBody);
+        this.advisedTimeBetweenRequests = responseBody.nextPollAfterMs;
 
         const toPhaseValue = (v: string) => v === "RED" ? PhaseValues.RED : PhaseValues.GREEN;
 
@@ -154,8 +170,7 @@ export class RunTourApiService {
             snappedPosition: new LatLng(responseBody.snappedTo.lat, responseBody.snappedTo.lon),
             trafficLightsData: [{
                 id: responseBody.trafficLightId,
-                phases: !(responseBody.data) ? [] :
-                    responseBody.data.filter(v => v.result === "RED" || v.result === "GREEN").map(v => {
+                phases: this.data.filter(v => v.result === "RED" || v.result === "GREEN").map(v => {
                         const ph: Phase = {
                             tsp: new Date(v.phenomenonTime).valueOf(),
                             value: toPhaseValue(v.result),
@@ -172,16 +187,39 @@ export class RunTourApiService {
         this.checkForRequest();
     }
 
+    private applyData(responseBody: Response) {
+        const delta = responseBody.dataDelta;
+        if (delta && delta.fromVersion === this.dataVersion) {
+            const removed = new Set(delta.removed.map(t => new Date(t).valueOf()));
+            const changed = new Set(delta.changed.map(d => new Date(d.phenomenonTime).valueOf()));
+            this.data = this.data
+                .filter(d => !removed.has(new Date(d.phenomenonTime).valueOf())
+                    && !changed.has(new Date(d.phenomenonTime).valueOf()))
+                .concat(delta.changed);
+            this.dataVersion = responseBody.dataVersion;
+        } else if (delta) { // unexpected base version: request the full data next time
+            this.data = [];
+            this.dataVersion = undefined;
+        } else {
+            this.data = responseBody.data ?? [];
+            this.dataVersion = responseBody.dataVersion;
+        }
+    }
+
     private checkForRequest() {
         if (this.isRequestPending) return; // no concurrent requests
         if (!this.newPositions.length) return; // nothing new
-        if (this.timeOfLastRequest && this.timeSinceLastRequest() < this.timeBetweenRequests) {
+        if (this.timeOfLastRequest && this.timeSinceLastRequest() < this.currentTimeBetweenRequests()) {
             this.setTimerIfNecessary();
             return;
         }
         this.request();
     }
 
+    private currentTimeBetweenRequests(): number {
+        return this.advisedTimeBetweenRequests ?? this.timeBetweenRequests;
+    }
+
     private timeSinceLastRequest(): number {
         if (!this.timeOfLastRequest) throw new Error();
         return Date.now() - this.timeOfLastRequest;
@@ -189,7 +227,7 @@ export class RunTourApiService {
 
     private setTimerIfNecessary() {
         if (this.requestTimer) return;
-        const timeToNextRequest = this.timeBetweenRequests - this.timeSinceLastRequest();
+        const timeToNextRequest = this.currentTimeBetweenRequests() - this.timeSinceLastRequest();
         this.requestTimer = setTimeout(() => {
             this.requestTimer = undefined;
             this.checkForRequest();
@@ -46,6 +46,9 @@ class ShowTour extends React.Component<Props, State> {
 
     state: State = {}
 
+    // downsampled by the server, enough for drawing
+    static readonly MAX_POINTS = 1000;
+
     tspHoverChangeObserver = new TspHoverChangeObserver();
 
     componentDidMount(): void {
@@ -53,7 +56,8 @@ class ShowTour extends React.Component<Props, State> {
     }
 
     async fetchTourDetails() {
-        const response = await fetch("/api/tour/" + this.props.tourId, { method: "GET" });
+        const response = await fetch("/api/tour/" + this.props.tourId + "?maxPoints=" + ShowTour.MAX_POINTS,
+            { method: "GET" });
         if (!response.ok) throw new Error("" + response.status);
         const body: TourDetails = await response.json();
         body.locations.forEach(l => { l.tsp = new Date(l.measurementTime).getTime() / 1000; });